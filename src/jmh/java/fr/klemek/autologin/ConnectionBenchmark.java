@@ -0,0 +1,75 @@
+package fr.klemek.autologin;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * End to end connection check of a profile (App.verifyConnection) against the in-process portal simulator,
+ * logged in once so the check passes : port tests on several ports, or the lightweight probe.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ConnectionBenchmark {
+
+    @Param({"2", "8"})
+    public int portCount;
+
+    @Param({"0", "20"})
+    public int latency;
+
+    @Param({"false", "true"})
+    public boolean fastProbe;
+
+    private PortalSimulator simulator;
+    private Profile profile;
+
+    @Setup
+    public void start() throws IOException {
+        simulator = new PortalSimulator("user", "secret", latency, 0, true, true);
+        simulator.start(portCount);
+        Properties props = new Properties();
+        props.setProperty("address", simulator.getAddress());
+        props.setProperty("username_field_id", PortalSimulator.USERNAME_ID);
+        props.setProperty("pass_field_id", PortalSimulator.PASS_ID);
+        props.setProperty("button_id", PortalSimulator.BUTTON_ID);
+        props.setProperty("login", "user");
+        props.setProperty("pass", "secret");
+        props.setProperty("login_engine", "http");
+        props.setProperty("test_address", "http://127.0.0.1");
+        StringBuilder ports = new StringBuilder();
+        for (int port : simulator.getPorts())
+            ports.append(ports.length() == 0 ? "" : ",").append(port);
+        props.setProperty("test_ports", ports.toString());
+        props.setProperty("test_head", PortalSimulator.TEST_HEAD);
+        if (fastProbe)
+            props.setProperty("probe_url", "http://127.0.0.1:" + simulator.getPorts().get(0)
+                    + PortalSimulator.NO_CONTENT_PATH);
+        Utils.setProperties(props);
+        HttpUtils.setTimeouts(5000, 5000);
+        profile = new Profile(null);
+        if (!App.checkAndLogin(profile) || !simulator.isConnected())
+            throw new IllegalStateException("Cannot log into the simulator");
+    }
+
+    @TearDown
+    public void stop() {
+        simulator.stop();
+    }
+
+    @Benchmark
+    public boolean verifyConnection() {
+        return App.verifyConnection(profile);
+    }
+}
@@ -0,0 +1,74 @@
+package fr.klemek.autologin;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HttpUtilsBenchmark {
+
+    private static final String HEAD = "<html>\n<head>\n<title>Outgoing Port Tester</title>";
+
+    @Param({"1024", "65536", "1048576"})
+    public int bodySize;
+
+    private byte[] body;
+    private Map<String, String[]> params;
+    private String json;
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder(HEAD);
+        while (sb.length() < bodySize)
+            sb.append("<p>Lorem ipsum dolor sit amet, consectetur adipiscing elit.</p>\n");
+        body = sb.substring(0, bodySize).getBytes(StandardCharsets.UTF_8);
+
+        params = new LinkedHashMap<>();
+        params.put("LoginUserPassword_auth_username", new String[]{"john.doe@example.com"});
+        params.put("LoginUserPassword_auth_password", new String[]{"p@ss word&=?"});
+        params.put("token", new String[]{"a1b2c3d4e5f6", "second value"});
+
+        StringBuilder js = new StringBuilder("{\"items\":[");
+        for (int i = 0; i < 100; i++)
+            js.append(i == 0 ? "" : ",").append("{\"id\":").append(i).append(",\"name\":\"item ").append(i).append("\"}");
+        json = js.append("]}").toString();
+    }
+
+    @Benchmark
+    public String getParametersString() {
+        return HttpUtils.getParametersString(params);
+    }
+
+    @Benchmark
+    public int readInputStream() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        HttpUtils.readInputStream(sb, new ByteArrayInputStream(body), StandardCharsets.UTF_8, null);
+        return sb.length();
+    }
+
+    @Benchmark
+    public HttpUtils.Match readInputStreamPrefix() throws IOException {
+        return HttpUtils.readInputStream(new StringBuilder(), new ByteArrayInputStream(body), StandardCharsets.UTF_8,
+                HttpUtils.prefixMatcher(HEAD));
+    }
+
+    @Benchmark
+    public Object getJSON() {
+        return new HttpUtils.HttpResult(200, json, Collections.emptyMap()).getJSON();
+    }
+}
@@ -3,186 +3,205 @@ package fr.klemek.autologin;
 import fr.klemek.logger.Logger;
 
 import java.io.File;
-import java.io.IOException;
-import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
-import org.openqa.selenium.By;
-import org.openqa.selenium.Dimension;
-import org.openqa.selenium.WebDriver;
-import org.openqa.selenium.WebElement;
-import org.openqa.selenium.phantomjs.PhantomJSDriver;
-
 public class App {
 
-    private static HashMap<String, String> params;
+    static String driverPath;
+    static boolean resident;
+    static volatile boolean browserLoaded;
+    private static volatile List<Profile> profiles;
 
     public static void main(String[] args) {
         Logger.init("logging.properties");
 
-        if (verifyConnection()) {
-            System.exit(0);
+        if (!Config.get().isValid()) {
+            Logger.log(Level.SEVERE, "Invalid configuration in " + Config.FILE);
+            System.exit(1);
             return;
         }
 
-        if (args.length > 0) {
-            File driverLocation = new File(args[0]);
-            if (!driverLocation.exists()) {
-                Logger.log(Level.WARNING, "Could not find driver at argument 0 location");
-                System.exit(1);
-                return;
-            }
-            System.setProperty("phantomjs.binary.path", args[0]);
-        } else {
+        applySettings();
 
-            String path;
-            switch (Utils.detectOS()) {
-                case WINDOWS:
-                    path = "phantomjs/windows/phantomjs.exe";
-                    break;
-                case MACOSX:
-                    path = "phantomjs/macosx/phantomjs";
-                    break;
-                case UNIX:
-                    if (Utils.is64bit()) {
-                        path = "phantomjs/linux64/phantomjs";
-                    } else {
-                        path = "phantomjs/linux32/phantomjs";
-                    }
-                    break;
-                default:
-                    Logger.log(Level.SEVERE, "Unsupported OS '" + System.getProperty("os.name") + "'");
-                    Logger.log(Level.SEVERE, "Please indicate phantomJS binary file as first argument");
+        boolean daemon = false;
+        for (int i = 0; i < args.length; i++) {
+            if ("--simulate".equals(args[i])) {
+                System.exit(Simulation.run(Arrays.asList(args).subList(i + 1, args.length)) ? 0 : 1);
+                return;
+            } else if ("--stats".equals(args[i])) {
+                if (Utils.getString("journal_dir") == null) {
+                    Logger.log(Level.SEVERE, "journal_dir not set, there is no journal to read");
                     System.exit(1);
                     return;
-            }
-            try {
-                Logger.log("Extracting phantomJS binary into temp directory...");
-                File f = new File(Extractor.getFile(path));
-                f.setExecutable(true);
-                System.setProperty("phantomjs.binary.path", f.getAbsolutePath());
-
-            } catch (IOException | URISyntaxException e) {
-                Logger.log(e);
-                Logger.log(Level.SEVERE, "Cannot extract phantomJS binary");
-            }
-        }
-
-
-
-        if (!loadParams()) {
-            Logger.log(Level.SEVERE, "Cannot load parameters");
-            System.exit(1);
-            return;
+                }
+                System.exit(JournalStats.run(getJournalDir(), Arrays.asList(args).subList(i + 1, args.length)) ? 0 : 1);
+                return;
+            } else if ("--daemon".equals(args[i]) || "-d".equals(args[i]))
+                daemon = true;
+            else if (driverPath == null)
+                driverPath = args[i];
         }
 
-        HttpUtils.HttpResult hr = HttpUtils.executeRequest("GET", params.get("address"));
-        if (hr.code != 200) {
-            Logger.log(Level.SEVERE, "Destination address is not reachable");
-            System.exit(1);
+        profiles = Profile.loadAll();
+        SessionStore.restore(Utils.getString("state_file") == null
+                ? new File(getCacheDir(), "sessions.json") : new File(Utils.getString("state_file")));
+        LoginFlow.load(Utils.getString("flows_file") == null
+                ? new File(getCacheDir(), "flows.json") : new File(Utils.getString("flows_file")));
+        LoginEngines.load(Utils.getString("engines_file") == null
+                ? new File(getCacheDir(), "engines.json") : new File(Utils.getString("engines_file")));
+        if (Utils.getString("journal_dir") != null)
+            Journal.open(getJournalDir(), Utils.getInt("journal_segment_records", 65536),
+                    Utils.getInt("journal_segments", 16));
+
+        if (daemon) {
+            resident = true;
+            if (Utils.getString("metrics_port") != null)
+                Metrics.serve(Utils.getInt("metrics_port", 9464));
+            Config.watch(Config.FILE, () -> {
+                applySettings();
+                profiles = Profile.loadAll(profiles);
+            });
+            long interval = Utils.getInt("check_interval", 30) * 1000L;
+            boolean watchNetwork = !"false".equals(Utils.getString("network_watch"))
+                    && NetworkWatcher.start(Utils.getInt("network_poll", 1000), Watchdog::trigger);
+            Watchdog.start(App::checkAll, interval,
+                    watchNetwork ? Utils.getInt("check_max_interval", 300) * 1000L : interval);
             return;
         }
 
-        if (driverExecution()){
-            System.exit(1);
-        }else{
-            verifyConnection();
-            System.exit(0);
-        }
+        boolean connected = checkAll();
+        if (browserLoaded)
+            BrowserLogin.shutdown();
+        Journal.close();
+        System.exit(connected ? 0 : 1);
     }
 
-    private static boolean driverExecution() {
-        WebDriver driver = null;
-        try {
-            driver = new PhantomJSDriver();
-            driver.manage().timeouts().implicitlyWait(10, TimeUnit.SECONDS);
-            driver.manage().window().setSize(new Dimension(1024, 768));
-
-            Logger.log("Connecting " + params.get("address") + "...");
+    /**
+     * Apply the settings read once at startup, and again when the configuration is reloaded.
+     * The browser settings are only applied once it was needed, so Selenium is not loaded when already connected.
+     */
+    private static void applySettings() {
+        HttpUtils.setMaxConnections(Utils.getInt("http_max_connections", 5));
+        HttpUtils.setTimeouts(Utils.getInt("connect_timeout", 5000), Utils.getInt("read_timeout", 5000));
+        HttpUtils.setMaxRedirects(Utils.getInt("max_redirects", 5));
+        HttpUtils.setMaxBodySize(Utils.getInt("max_body_size", 4 * 1024 * 1024));
+        Resolver.configure(Utils.getInt("dns_ttl", 300), Utils.getInt("dns_timeout", 1000),
+                !"false".equals(Utils.getString("dns_pin")));
+        if (browserLoaded)
+            BrowserLogin.applySettings();
+    }
 
-            driver.get(params.get("address"));
+    private static boolean checkAll() {
+        List<Profile> current = profiles;
+        boolean connected = Fleet.checkAll(current, Utils.getInt("fleet_threads", Math.min(current.size(), 8)),
+                App::checkAndLogin);
+        exportMetrics();
+        return connected;
+    }
 
-            if (params.containsKey("page_title") && !driver.getTitle().equals(params.get("page_title"))) {
-                Logger.log(Level.SEVERE, "Invalid page title");
-                System.exit(1);
+    /**
+     * Verify the connection of a profile and login if needed.
+     * Parameters and phantomJS binary are only loaded once and kept between calls.
+     *
+     * @param profile the portal to check
+     * @return true if connected at the end
+     */
+    static boolean checkAndLogin(Profile profile) {
+        if (verifyConnection(profile)) {
+            LinkQuality.Verdict verdict = profile.quality.check(profile);
+            if (verdict == LinkQuality.Verdict.GOOD) {
+                if (SessionStore.isDue(profile, profile.getInt("keepalive_interval", 300) * 1000L))
+                    SessionStore.refresh(profile);
                 return true;
             }
-
-            Logger.log("Connected");
-
-            Utils.pause(2000);
-
-            Utils.createScreenshot(driver, "screenshot_phantomJS.png");
-
-
-            WebElement loginInput = driver.findElement(By.id(params.get("username_field_id")));
-            WebElement passwordInput = driver.findElement(By.id(params.get("pass_field_id")));
-
-            if (loginInput == null || passwordInput == null) {
-                Logger.log(Level.SEVERE, "Cannot find field input");
-                System.exit(1);
+            if (verdict == LinkQuality.Verdict.REFRESH && SessionStore.refresh(profile)) {
+                Logger.log(Level.WARNING, "Link degraded, session refreshed");
                 return true;
             }
+            Logger.log(Level.WARNING, "Link degraded, logging in again");
+        } else if (SessionStore.refresh(profile) && verifyConnection(profile)) {
+            Logger.log("Session refreshed, no login needed");
+            return true;
+        }
 
-            Logger.log("Detected input fields");
-
-            loginInput.click();
-            loginInput.sendKeys(params.get("login"));
-            passwordInput.click();
-            passwordInput.sendKeys(params.get("pass"));
-            Logger.log("Filled input fields");
-
-            Utils.createScreenshot(driver, "screenshot_phantomJS.png");
-            WebElement buttonLogin = driver.findElement(By.id(params.get("button_id")));
-
-            if (buttonLogin == null) {
-                Logger.log(Level.SEVERE, "Cannot find button");
-                System.exit(1);
-                return true;
-            }
+        if (!profile.hasParams() && !loadParams(profile)) {
+            Logger.log(Level.SEVERE, "Cannot load parameters");
+            return false;
+        }
 
-            Logger.log("Detected button");
-            buttonLogin.click();
+        long start = System.nanoTime();
+        profile.loginCode = 0;
+        boolean connected = Retry.run(profile.getInt("login_attempts", 3), profile.getInt("retry_delay", 1000),
+                profile.getInt("retry_max_delay", 60000), profile.breaker, () -> isReachable(profile), () -> {
+                    Metrics.increment("login_attempts");
+                    return LoginEngines.login(profile);
+                });
+        if (connected)
+            Journal.append(profile, Journal.Phase.LOGIN, Metrics.time("time_to_connected", start), profile.loginCode,
+                    true);
+        else {
+            Journal.append(profile, Journal.Phase.LOGIN, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                    profile.loginCode, false);
+            Metrics.increment("login_failures");
+        }
+        return connected;
+    }
 
-            Logger.log("Clicked button");
+    private static boolean isReachable(Profile profile) {
+        HttpUtils.HttpResult hr = HttpUtils.executeRequest("GET", profile.params.get("address"), profile.cookies);
+        if (hr.code != 200) {
+            Logger.log(Level.SEVERE, "Destination address is not reachable");
+            return false;
+        }
+        return true;
+    }
 
-            Utils.pause(2000);
-            Logger.log("Form filled successfully");
+    private static void exportMetrics() {
+        if (Utils.getString("metrics_file") != null)
+            Metrics.export(new File(Utils.getString("metrics_file")));
+    }
 
-            driver.quit();
-            return false;
+    private static File getJournalDir() {
+        return new File(Utils.getString("journal_dir"));
+    }
 
-        } catch (Exception e) {
-            Logger.log(e);
-            if (driver != null)
-                driver.quit();
-            return true;
-        }
+    static File getCacheDir() {
+        return Utils.getString("cache_dir") == null
+                ? new File(System.getProperty("user.home"), ".autologin")
+                : new File(Utils.getString("cache_dir"));
     }
 
-    private static boolean loadParams() {
-        params = new HashMap<>();
-        if (Utils.getString("address") == null) {
+    private static boolean loadParams(Profile profile) {
+        Config config = Config.get();
+        HashMap<String, String> params = new HashMap<>();
+        if (profile.getString("address") != null) {
+            params.put("address", profile.getString("address"));
+        } else if (profile.portal != null) {
+            params.put("address", profile.portal);
+            Logger.log("Using detected portal " + profile.portal);
+        } else {
             Logger.log(Level.SEVERE, "No address to connect");
             return false;
         }
-        params.put("address", Utils.getString("address"));
-        if (Utils.getString("page_title") != null) {
-            params.put("page_title", Utils.getString("page_title"));
+        if (profile.getString("page_title") != null) {
+            params.put("page_title", profile.getString("page_title"));
         } else {
             Logger.log(Level.WARNING, "No page title, cannot ensure correct page is connected");
         }
         for (String field : new String[]{"username_field_id", "pass_field_id", "button_id"}) {
-            if (Utils.getString(field) == null) {
+            if (profile.getString(field) == null) {
                 Logger.log(Level.SEVERE, "Missing id : " + field);
                 return false;
             }
-            params.put(field, Utils.getString(field));
+            params.put(field, profile.getString(field));
         }
-        if (Utils.getString("login") != null) {
-            params.put("login", Utils.getString("login"));
+        if (profile.getString("login") != null) {
+            params.put("login", profile.getString("login"));
             Logger.log("Using login '" + params.get("login") + "'");
         } else {
             if (System.console() == null)
@@ -194,8 +213,8 @@ public class App {
             }
             params.put("login", login);
         }
-        if (Utils.getString("pass") != null) {
-            params.put("pass", Utils.getString("pass"));
+        if (profile.getString("pass") != null) {
+            params.put("pass", profile.getString("pass"));
             Logger.log("Using pass '" + Utils.hideString(params.get("pass").length()) + "'");
         } else {
             if (System.console() == null)
@@ -207,49 +226,62 @@ public class App {
             }
             params.put("pass", pass);
         }
+        HttpUtils.addSecret(params.get("pass"));
+        profile.setParams(Collections.unmodifiableMap(params), config);
         return true;
     }
 
-    private static boolean verifyConnection() {
-        if (Utils.getString("test_ports") == null || Utils.getString("test_address") == null) {
+    static boolean verifyConnection(Profile profile) {
+        Resolver.register(profile);
+        if (Resolver.isHijacked(profile)) {
+            Metrics.increment("checks_dns_hijacked");
+            Journal.append(profile, Journal.Phase.PROBE, 0, 0, false);
+            Metrics.increment("checks_disconnected");
+            Logger.log(Level.WARNING, "You don't seem as connected as you want to the outside world");
+            return false;
+        }
+
+        if (profile.getString("probe_url") != null) {
+            long start = System.nanoTime();
+            ConnectionTester.Detection detection = ConnectionTester.detect(profile.getString("probe_url"),
+                    profile.getInt("probe_code", 204), profile.getString("probe_body"));
+            Journal.append(profile, Journal.Phase.PROBE, Metrics.time("verify", start), detection.code,
+                    detection.connected);
+            Metrics.increment(detection.connected ? "checks_connected" : "checks_disconnected");
+            if (detection.portal != null)
+                profile.portal = detection.portal;
+            if (detection.connected) {
+                Resolver.confirm(profile);
+                Logger.log("You seem connected to the outside world !");
+            }
+            else
+                Logger.log(Level.WARNING, "You don't seem as connected as you want to the outside world");
+            return detection.connected;
+        }
+
+        List<String> addresses = profile.getList("test_address");
+        List<Integer> ports = profile.getInts("test_ports");
+        if (addresses.isEmpty() || ports.isEmpty()) {
             Logger.log(Level.WARNING, "Skipped connection test");
             return true;
         }
 
         Logger.log("Testing connection...");
 
-        String[] ports = Utils.getString("test_ports").split(",");
-        String address = Utils.getString("test_address");
-        String head = Utils.getString("test_head");
-
-        boolean connected = true;
+        long start = System.nanoTime();
+        boolean connected = "tcp".equals(profile.getString("test_mode"))
+                ? ConnectionTester.verifyTcp(addresses, ports, profile.getInts("test_content_ports"),
+                profile.getString("test_head"), profile.getInt("test_timeout", 10000))
+                : ConnectionTester.verify(addresses, ports, profile.getString("test_head"),
+                profile.getInt("test_timeout", 10000));
+        Journal.append(profile, Journal.Phase.PROBE, Metrics.time("verify", start), 0, connected);
+        Metrics.increment(connected ? "checks_connected" : "checks_disconnected");
 
-        for (String sPort : ports) {
-            try {
-                int port = Integer.parseInt(sPort);
-                Logger.log("Testing port : " + port);
-                HttpUtils.HttpResult hr = HttpUtils.executeRequest("GET", address + ":" + port);
-                if (hr.code != 200) {
-                    Logger.log(Level.WARNING, "Got response " + hr.code);
-                    connected = false;
-                    break;
-                }
-                if (head != null && (hr.result == null || !hr.result.trim().startsWith(head))) {
-                    if (hr.result != null)
-                        Logger.log(Level.WARNING, "Invalid start of response : '" + hr.result.trim().substring(0, head.length()) + "'");
-                    else
-                        Logger.log(Level.WARNING, "Response is null");
-                    connected = false;
-                    break;
-                }
-            } catch (NumberFormatException e) {
-                Logger.log(Level.WARNING, "Invalid port : '" + sPort + "'");
-            }
-        }
         if (!connected) {
             Logger.log(Level.WARNING, "You don't seem as connected as you want to the outside world");
             return false;
         } else {
+            Resolver.confirm(profile);
             Logger.log("You seem connected to the outside world !");
             return true;
         }
@@ -0,0 +1,58 @@
+package fr.klemek.autologin;
+
+import fr.klemek.logger.Logger;
+
+import java.util.logging.Level;
+
+/**
+ * Log in with a browser : phantomJS (external binary, sessions pooled in daemon mode)
+ * or HtmlUnit (in the JVM, nothing to extract nor start).
+ * BrowserLogin and Selenium are only loaded when one of them is used.
+ *
+ * @author Clement Gouin
+ */
+final class BrowserEngine implements LoginEngine {
+
+    /**
+     * Looked up as a resource so HtmlUnit is not loaded to know if it is there.
+     */
+    private static final String HTMLUNIT_CLASS = "org/openqa/selenium/htmlunit/HtmlUnitDriver.class";
+
+    static final BrowserEngine PHANTOMJS = new BrowserEngine("phantomjs", false);
+    static final BrowserEngine HTMLUNIT = new BrowserEngine("htmlunit", true);
+
+    private final String name;
+    private final boolean inJvm;
+
+    private BrowserEngine(String name, boolean inJvm) {
+        this.name = name;
+        this.inJvm = inJvm;
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    /**
+     * @return false if the engine is not in this build (the light jar has no HtmlUnit)
+     */
+    boolean isAvailable() {
+        return !inJvm || BrowserEngine.class.getClassLoader().getResource(HTMLUNIT_CLASS) != null;
+    }
+
+    @Override
+    public FormLogin.Result login(Profile profile) {
+        if (!isAvailable()) {
+            Logger.log(Level.WARNING, "HtmlUnit is not in this build");
+            return FormLogin.Result.UNRESOLVED;
+        }
+        App.browserLoaded = true;
+        FormLogin.Result result = inJvm ? BrowserLogin.loginInJvm(profile) : BrowserLogin.login(profile);
+        if (result == FormLogin.Result.UNRESOLVED)
+            return result;
+        if (App.verifyConnection(profile))
+            return FormLogin.Result.SUCCESS;
+        return result == FormLogin.Result.FAILED ? result : FormLogin.Result.UNRESOLVED;
+    }
+}
@@ -0,0 +1,264 @@
+package fr.klemek.autologin;
+
+import fr.klemek.logger.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpCookie;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+import org.openqa.selenium.By;
+import org.openqa.selenium.Cookie;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebElement;
+import org.openqa.selenium.htmlunit.HtmlUnitDriver;
+
+/**
+ * The browser logins (phantomJS or HtmlUnit), kept apart from App so Selenium and the binary extraction
+ * are only loaded when a browser login is actually needed.
+ *
+ * @author Clement Gouin
+ */
+final class BrowserLogin {
+
+    private static boolean settingsApplied;
+    private static boolean driverReady;
+
+    private BrowserLogin() {
+    }
+
+    /**
+     * Prepare phantomJS on first use and log in.
+     *
+     * @param profile the profile to log in
+     * @return the outcome of the form submission
+     */
+    static FormLogin.Result login(Profile profile) {
+        synchronized (BrowserLogin.class) {
+            if (!settingsApplied)
+                applySettings();
+            if (!driverReady) {
+                if (App.resident)
+                    DriverPool.configure(Utils.getInt("driver_pool_size", 1), Utils.getInt("driver_max_uses", 10),
+                            Utils.getInt("driver_idle_ttl", 300) * 1000L);
+                if (!(driverReady = setupDriver()))
+                    return FormLogin.Result.UNRESOLVED;
+                if (App.resident)
+                    DriverPool.warmUp();
+            }
+        }
+        WebDriver driver = DriverPool.acquire();
+        if (driver == null) {
+            Logger.log(Level.SEVERE, "Cannot start phantomJS");
+            return FormLogin.Result.UNRESOLVED;
+        }
+        FormLogin.Result result = driverExecution(profile, driver);
+        DriverPool.release(driver, result == FormLogin.Result.UNRESOLVED);
+        return result;
+    }
+
+    /**
+     * Log in with HtmlUnit, a headless browser running in the JVM : no binary to extract nor process to start.
+     *
+     * @param profile the profile to log in
+     * @return the outcome of the form submission
+     */
+    static FormLogin.Result loginInJvm(Profile profile) {
+        synchronized (BrowserLogin.class) {
+            if (!settingsApplied)
+                applySettings();
+        }
+        long start = System.nanoTime();
+        WebDriver driver = new HtmlUnitDriver(true);
+        Metrics.time("htmlunit_start", start);
+        try {
+            return driverExecution(profile, driver);
+        } finally {
+            driver.quit();
+        }
+    }
+
+    /**
+     * Apply the browser settings, again when the configuration is reloaded.
+     */
+    static void applySettings() {
+        settingsApplied = true;
+        Screenshots.configure(Utils.getString("screenshots") == null ? "failure" : Utils.getString("screenshots"),
+                Utils.getInt("screenshots_keep", 5),
+                new File(Utils.getString("screenshots_dir") == null ? "." : Utils.getString("screenshots_dir")));
+    }
+
+    /**
+     * Stop the phantomJS sessions and write the pending screenshots.
+     */
+    static void shutdown() {
+        DriverPool.shutdown();
+        Screenshots.flush();
+    }
+
+    private static boolean setupDriver() {
+        String driverPath = App.driverPath;
+        if (driverPath != null) {
+            File driverLocation = new File(driverPath);
+            if (!driverLocation.exists()) {
+                Logger.log(Level.WARNING, "Could not find driver at argument 0 location");
+                return false;
+            }
+            System.setProperty("phantomjs.binary.path", driverPath);
+        } else {
+
+            String path;
+            switch (Utils.detectOS()) {
+                case WINDOWS:
+                    path = "phantomjs/windows/phantomjs.exe";
+                    break;
+                case MACOSX:
+                    path = "phantomjs/macosx/phantomjs";
+                    break;
+                case UNIX:
+                    if (Utils.is64bit()) {
+                        path = "phantomjs/linux64/phantomjs";
+                    } else {
+                        path = "phantomjs/linux32/phantomjs";
+                    }
+                    break;
+                default:
+                    Logger.log(Level.SEVERE, "Unsupported OS '" + System.getProperty("os.name") + "'");
+                    Logger.log(Level.SEVERE, "Please indicate phantomJS binary file as first argument");
+                    return false;
+            }
+            try {
+                File cacheDir = App.getCacheDir();
+                Logger.log("Extracting phantomJS binary into " + cacheDir + "...");
+                long start = System.nanoTime();
+                File f = new File(Extractor.getFile(path, cacheDir));
+                Metrics.time("extract", start);
+                f.setExecutable(true);
+                System.setProperty("phantomjs.binary.path", f.getAbsolutePath());
+
+            } catch (IOException | URISyntaxException e) {
+                Logger.log(e);
+                Logger.log(Level.SEVERE, "Cannot extract phantomJS binary");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Fill and submit the login form in a browser.
+     *
+     * @param profile the profile to log in
+     * @param driver  the browser to use
+     * @return UNRESOLVED if an error occurred, FAILED if the login form is shown again after the submission,
+     * SUCCESS otherwise
+     */
+    private static FormLogin.Result driverExecution(Profile profile, WebDriver driver) {
+        Map<String, String> params = profile.params;
+        Screenshots.reset(driver);
+        try {
+
+            Logger.log("Connecting " + params.get("address") + "...");
+
+            long start = System.nanoTime();
+            driver.get(params.get("address"));
+            Metrics.time("page_load", start);
+
+            if (params.containsKey("page_title") && !driver.getTitle().equals(params.get("page_title"))) {
+                Logger.log(Level.SEVERE, "Invalid page title");
+                Screenshots.capture(driver, "invalid_title", true);
+                return FormLogin.Result.UNRESOLVED;
+            }
+
+            Logger.log("Connected");
+
+            start = System.nanoTime();
+            if (!new Waiter(driver, params, getConditions(profile, "load_conditions", "ready_state,fields"), false,
+                    () -> ConnectionTester.isConnected(profile))
+                    .await(profile.getInt("wait_timeout", 10000), profile.getInt("wait_poll", 100))) {
+                Logger.log(Level.SEVERE, "Login page not ready");
+                Screenshots.capture(driver, "not_ready", true);
+                return FormLogin.Result.UNRESOLVED;
+            }
+
+            Screenshots.capture(driver, "loaded", false);
+
+            WebElement loginInput = driver.findElement(By.id(params.get("username_field_id")));
+            WebElement passwordInput = driver.findElement(By.id(params.get("pass_field_id")));
+
+            if (loginInput == null || passwordInput == null) {
+                Logger.log(Level.SEVERE, "Cannot find field input");
+                Screenshots.capture(driver, "no_fields", true);
+                return FormLogin.Result.UNRESOLVED;
+            }
+
+            Logger.log("Detected input fields");
+            Metrics.time("fields", start);
+
+            loginInput.click();
+            loginInput.sendKeys(params.get("login"));
+            passwordInput.click();
+            passwordInput.sendKeys(params.get("pass"));
+            Logger.log("Filled input fields");
+
+            Screenshots.capture(driver, "filled", false);
+            WebElement buttonLogin = driver.findElement(By.id(params.get("button_id")));
+
+            if (buttonLogin == null) {
+                Logger.log(Level.SEVERE, "Cannot find button");
+                Screenshots.capture(driver, "no_button", true);
+                return FormLogin.Result.UNRESOLVED;
+            }
+
+            Logger.log("Detected button");
+            FlowRecorder recorder = LoginFlow.get(profile) == null && !"false".equals(profile.getString("record_flows"))
+                    ? FlowRecorder.start(driver, params.get("button_id")) : null;
+            start = System.nanoTime();
+            Waiter submitted = new Waiter(driver, params,
+                    getConditions(profile, "submit_conditions", "page_changed,connected"), true,
+                    () -> ConnectionTester.isConnected(profile));
+            buttonLogin.click();
+
+            Logger.log("Clicked button");
+            List<LoginFlow.Step> requests = recorder == null ? null : recorder.requests();
+
+            if (!submitted.await(profile.getInt("wait_timeout", 10000), profile.getInt("wait_poll", 100))) {
+                Logger.log(Level.SEVERE, "No answer to the form");
+                Screenshots.capture(driver, "not_submitted", true);
+                return FormLogin.Result.UNRESOLVED;
+            }
+            Logger.log("Form filled successfully");
+            Metrics.time("submit", start);
+
+            List<HttpCookie> cookies = new ArrayList<>();
+            for (Cookie cookie : driver.manage().getCookies()) {
+                HttpCookie httpCookie = new HttpCookie(cookie.getName(), cookie.getValue());
+                httpCookie.setDomain(cookie.getDomain());
+                httpCookie.setPath(cookie.getPath());
+                if (cookie.getExpiry() != null)
+                    httpCookie.setMaxAge(Math.max(0, (cookie.getExpiry().getTime() - System.currentTimeMillis()) / 1000));
+                cookies.add(httpCookie);
+            }
+            String pageSource = driver.getPageSource();
+            SessionStore.capture(profile, driver.getCurrentUrl(), pageSource, cookies);
+            if (FormLogin.findForm(pageSource, params.get("pass_field_id")) != null)
+                return FormLogin.Result.FAILED;
+            if (requests != null)
+                LoginFlow.record(profile, recorder.getPageSource(), requests);
+
+            return FormLogin.Result.SUCCESS;
+
+        } catch (Exception e) {
+            Logger.log(e);
+            Screenshots.capture(driver, "error", true);
+            return FormLogin.Result.UNRESOLVED;
+        }
+    }
+
+    private static String getConditions(Profile profile, String key, String defaultValue) {
+        return profile.getString(key) == null ? defaultValue : profile.getString(key);
+    }
+}
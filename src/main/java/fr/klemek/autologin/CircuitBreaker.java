@@ -0,0 +1,83 @@
+package fr.klemek.autologin;
+
+import fr.klemek.logger.Logger;
+
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+
+/**
+ * Stop trying to log into a portal after repeated failures, and try again after a cooldown.
+ * The threshold and cooldown are read on each use so a configuration reload applies to them.
+ *
+ * @author Clement Gouin
+ */
+final class CircuitBreaker {
+
+    enum State {
+        /**
+         * Logins are attempted normally.
+         */
+        CLOSED,
+        /**
+         * Too many failures, logins are skipped until the cooldown ends.
+         */
+        OPEN,
+        /**
+         * The cooldown ended, a single login is allowed to test the portal.
+         */
+        HALF_OPEN
+    }
+
+    private final String name;
+    private final IntSupplier threshold;
+    private final LongSupplier cooldown;
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+
+    /**
+     * @param name      the name used in logs
+     * @param threshold the number of consecutive failures opening the breaker
+     * @param cooldown  the time the breaker stays open in ms
+     */
+    CircuitBreaker(String name, IntSupplier threshold, LongSupplier cooldown) {
+        this.name = name;
+        this.threshold = threshold;
+        this.cooldown = cooldown;
+    }
+
+    /**
+     * @return true if a login can be attempted, the breaker goes half-open if the cooldown ended
+     */
+    synchronized boolean allowRequest() {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= cooldown.getAsLong()) {
+            Logger.log("Circuit breaker of " + name + " half-open, testing portal");
+            state = State.HALF_OPEN;
+        }
+        return state != State.OPEN;
+    }
+
+    synchronized void onSuccess() {
+        if (state != State.CLOSED)
+            Logger.log("Circuit breaker of " + name + " closed");
+        failures = 0;
+        state = State.CLOSED;
+    }
+
+    synchronized void onFailure() {
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= threshold.getAsInt())) {
+            Logger.log(Level.WARNING, "Circuit breaker of " + name + " open after " + failures
+                    + " failures, next try in " + cooldown.getAsLong() / 1000 + " s");
+            Metrics.increment("breaker_open");
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+}
@@ -0,0 +1,289 @@
+package fr.klemek.autologin;
+
+import fr.klemek.logger.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Level;
+
+/**
+ * An immutable snapshot of the configuration, parsed and validated once.
+ * Integers and comma separated lists are converted when the snapshot is built so lookups are plain map reads.
+ * The current snapshot can be swapped atomically when the file changes (see watch).
+ *
+ * @author Clement Gouin
+ */
+final class Config {
+
+    static final String FILE = "config.properties";
+
+    /**
+     * Keys holding integers, also checked when prefixed by a profile name.
+     */
+    private static final Set<String> INT_KEYS = new HashSet<>(Arrays.asList(
+            "http_max_connections", "connect_timeout", "read_timeout", "max_redirects", "max_body_size",
+            "screenshots_keep", "fleet_threads", "driver_pool_size", "driver_max_uses", "driver_idle_ttl",
+            "metrics_port", "check_interval", "login_attempts", "retry_delay", "retry_max_delay",
+            "breaker_threshold", "breaker_cooldown", "wait_timeout", "wait_poll", "probe_code", "test_timeout",
+            "keepalive_interval", "network_poll", "check_max_interval", "journal_segment_records", "journal_segments",
+            "dns_ttl", "dns_timeout", "quality_max_rtt", "quality_min_throughput", "quality_samples", "quality_window",
+            "quality_interval", "quality_size"));
+
+    /**
+     * Keys holding comma separated integers.
+     */
+    private static final Set<String> INT_LIST_KEYS = new HashSet<>(Arrays.asList("test_ports", "test_content_ports"));
+
+    private static volatile Config current;
+
+    private final Map<String, String> strings = new HashMap<>();
+    private final Map<String, Integer> ints = new HashMap<>();
+    private final Map<String, List<String>> lists = new HashMap<>();
+    private final Map<String, List<Integer>> intLists = new HashMap<>();
+    private final List<String> errors = new ArrayList<>();
+
+    private Config(Properties props) {
+        for (String key : props.stringPropertyNames()) {
+            String value = props.getProperty(key);
+            if (value.length() == 0)
+                continue;
+            strings.put(key, value);
+
+            List<String> list = new ArrayList<>();
+            for (String item : value.split(","))
+                if (item.trim().length() > 0)
+                    list.add(item.trim());
+            lists.put(key, Collections.unmodifiableList(list));
+
+            String baseKey = key.substring(key.lastIndexOf('.') + 1);
+            if (INT_KEYS.contains(baseKey)) {
+                try {
+                    ints.put(key, Integer.parseInt(value.trim()));
+                } catch (NumberFormatException e) {
+                    errors.add("Invalid integer for '" + key + "' : '" + value + "'");
+                }
+            } else if (INT_LIST_KEYS.contains(baseKey)) {
+                List<Integer> values = new ArrayList<>();
+                for (String item : list) {
+                    try {
+                        values.add(Integer.parseInt(item));
+                    } catch (NumberFormatException e) {
+                        errors.add("Invalid integer in '" + key + "' : '" + item + "'");
+                    }
+                }
+                intLists.put(key, Collections.unmodifiableList(values));
+            }
+        }
+    }
+
+    /**
+     * @return the current snapshot, loading the configuration file on first use
+     */
+    static Config get() {
+        Config config = current;
+        if (config == null) {
+            synchronized (Config.class) {
+                if (current == null)
+                    current = read(FILE);
+                config = current;
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Replace the current snapshot with the given properties.
+     *
+     * @param props the new configuration
+     */
+    static void set(Properties props) {
+        current = build(props);
+    }
+
+    /**
+     * Read the configuration file again and swap the snapshot if it is valid.
+     *
+     * @param name the file to read
+     * @return true if the snapshot was replaced
+     */
+    static boolean reload(String name) {
+        Properties props = load(name);
+        if (props == null)
+            return false;
+        Config config = new Config(props);
+        if (!config.errors.isEmpty()) {
+            for (String error : config.errors)
+                Logger.log(Level.SEVERE, error);
+            Logger.log(Level.SEVERE, "Configuration not reloaded, keeping the previous one");
+            return false;
+        }
+        current = config;
+        Logger.log("Configuration reloaded");
+        return true;
+    }
+
+    /**
+     * Watch the configuration file and reload it on change, in a daemon thread.
+     * Only a file on disk can be watched, not a class path resource.
+     *
+     * @param name     the file to watch
+     * @param onReload called after each successful reload
+     * @return true if the file is watched
+     */
+    static boolean watch(String name, Runnable onReload) {
+        File file = new File(name).getAbsoluteFile();
+        if (!file.isFile())
+            return false;
+        Path dir = file.getParentFile().toPath();
+        Path fileName = file.toPath().getFileName();
+        WatchService service;
+        try {
+            service = FileSystems.getDefault().newWatchService();
+            dir.register(service, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+        } catch (IOException e) {
+            Logger.log(e);
+            return false;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = service.take();
+                    boolean changed = false;
+                    for (WatchEvent<?> event : key.pollEvents())
+                        if (fileName.equals(event.context()))
+                            changed = true;
+                    key.reset();
+                    if (changed) {
+                        // editors write in several steps, let the file settle
+                        Thread.sleep(200);
+                        while ((key = service.poll()) != null) {
+                            key.pollEvents();
+                            key.reset();
+                        }
+                        if (reload(name))
+                            onReload.run();
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        Logger.log("Watching " + file + " for changes");
+        return true;
+    }
+
+    private static Config read(String name) {
+        Properties props = load(name);
+        return build(props == null ? new Properties() : props);
+    }
+
+    private static Config build(Properties props) {
+        Config config = new Config(props);
+        for (String error : config.errors)
+            Logger.log(Level.SEVERE, error);
+        return config;
+    }
+
+    private static Properties load(String name) {
+        InputStream propIS;
+        try {
+            propIS = new FileInputStream(name);
+        } catch (IOException ex) {
+            propIS = Thread.currentThread().getContextClassLoader().getResourceAsStream(name);
+        }
+        if (propIS == null) {
+            Logger.log(Level.SEVERE, "File '" + name + "' not found");
+            return null;
+        }
+        Properties props = new Properties();
+        try (InputStream is = propIS) {
+            props.load(is);
+        } catch (IOException e) {
+            Logger.log(e);
+            return null;
+        }
+        return props;
+    }
+
+    /**
+     * @return true if every integer key holds a valid integer
+     */
+    boolean isValid() {
+        return errors.isEmpty();
+    }
+
+    /**
+     * @param key the key
+     * @return the value or null if missing or empty
+     */
+    String getString(String key) {
+        return strings.get(key);
+    }
+
+    /**
+     * @param key          the key
+     * @param defaultValue the value to use if missing or invalid
+     * @return the parsed value
+     */
+    int getInt(String key, int defaultValue) {
+        Integer value = ints.get(key);
+        if (value != null)
+            return value;
+        String raw = strings.get(key);
+        if (raw == null)
+            return defaultValue;
+        try {
+            return Integer.parseInt(raw.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @param key the key
+     * @return the trimmed non-empty items of a comma separated value, empty if missing
+     */
+    List<String> getList(String key) {
+        List<String> list = lists.get(key);
+        return list == null ? Collections.<String>emptyList() : list;
+    }
+
+    /**
+     * @param key the key
+     * @return the valid integers of a comma separated value, empty if missing
+     */
+    List<Integer> getInts(String key) {
+        List<Integer> list = intLists.get(key);
+        if (list != null)
+            return list;
+        List<Integer> values = new ArrayList<>();
+        for (String item : getList(key)) {
+            try {
+                values.add(Integer.parseInt(item));
+            } catch (NumberFormatException e) {
+                Logger.log(Level.WARNING, "Invalid integer in '" + key + "' : '" + item + "'");
+            }
+        }
+        return values;
+    }
+}
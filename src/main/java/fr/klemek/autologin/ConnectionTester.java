@@ -0,0 +1,207 @@
+package fr.klemek.autologin;
+
+import fr.klemek.logger.Logger;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Probe all the test urls concurrently and give a verdict as soon as it is known.
+ *
+ * @author Clement Gouin
+ */
+final class ConnectionTester {
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "probe");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private ConnectionTester() {
+    }
+
+    /**
+     * Run the connection test of a profile without journaling nor counting the check, to poll it while waiting.
+     *
+     * @param profile the profile holding the test settings
+     * @return true if the test passes, false if it fails or none is configured
+     */
+    static boolean isConnected(Profile profile) {
+        int timeout = profile.getInt("test_timeout", 10000);
+        if (profile.getString("probe_url") != null)
+            return detect(profile.getString("probe_url"), profile.getInt("probe_code", 204),
+                    profile.getString("probe_body")).connected;
+        List<String> addresses = profile.getList("test_address");
+        List<Integer> ports = profile.getInts("test_ports");
+        if (addresses.isEmpty() || ports.isEmpty())
+            return false;
+        return "tcp".equals(profile.getString("test_mode"))
+                ? verifyTcp(addresses, ports, profile.getInts("test_content_ports"), profile.getString("test_head"),
+                timeout)
+                : verify(addresses, ports, profile.getString("test_head"), timeout);
+    }
+
+    /**
+     * Probe every address on every port, all of them must answer correctly.
+     *
+     * @param addresses the addresses to reach
+     * @param ports     the ports to test on each address
+     * @param head      the expected start of the responses (or null to only check the code)
+     * @param timeout   the global deadline in ms
+     * @return true if all probes succeeded before the deadline
+     */
+    static boolean verify(List<String> addresses, List<Integer> ports, String head, long timeout) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        CompletionService<Boolean> service = new ExecutorCompletionService<>(EXECUTOR);
+        List<Future<Boolean>> futures = new ArrayList<>();
+        for (String address : addresses)
+            for (int port : ports)
+                futures.add(service.submit(() -> probe(address + ":" + port, head)));
+
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                Future<Boolean> done = service.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (done == null) {
+                    Logger.log(Level.WARNING, "Connection test timed out after " + timeout + " ms");
+                    Metrics.increment("probe_timeout");
+                    return false;
+                }
+                if (!done.get())
+                    return false;
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            Logger.log(e);
+            return false;
+        } finally {
+            for (Future<Boolean> future : futures)
+                future.cancel(true);
+        }
+    }
+
+    /**
+     * Open a raw TCP connection to every address on every port at once, then check the content
+     * only on the ports that need it (the ones a portal may intercept).
+     *
+     * @param addresses    the addresses to reach (urls or hosts)
+     * @param ports        the ports to connect to on each address
+     * @param contentPorts the ports where the content is also checked over http (can be empty)
+     * @param head         the expected start of the responses on the content ports (or null to only check the code)
+     * @param timeout      the global deadline in ms
+     * @return true if all connections and content checks succeeded before the deadline
+     */
+    static boolean verifyTcp(List<String> addresses, List<Integer> ports, List<Integer> contentPorts, String head,
+                             long timeout) {
+        long start = System.nanoTime();
+        List<TcpProber.Target> targets = TcpProber.targets(addresses, ports);
+        Logger.log("Connecting to " + targets.size() + " targets...");
+        boolean connected = TcpProber.connect(targets, timeout, true);
+        Metrics.time("tcp_connect", start);
+        if (!connected) {
+            Metrics.increment("probe_tcp_failed");
+            return false;
+        }
+        Metrics.increment("probe_tcp_success");
+        if (contentPorts.isEmpty())
+            return true;
+        long remaining = timeout - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        return remaining > 0 && verify(addresses, contentPorts, head, remaining);
+    }
+
+    /**
+     * Probe a lightweight endpoint answering a known code and small body, without following redirects.
+     * Any redirect or unexpected answer means a captive portal is in the way.
+     *
+     * @param url          the url to reach
+     * @param expectedCode the expected response code
+     * @param expectedBody the expected exact body (or null to only check the code)
+     * @return the result of the detection
+     */
+    static Detection detect(String url, int expectedCode, String expectedBody) {
+        Logger.log("Testing " + url);
+        HttpUtils.BodyMatcher matcher = expectedBody == null ? null : content ->
+                content.length() > expectedBody.length() || !expectedBody.startsWith(content.toString())
+                        ? HttpUtils.Match.MISMATCHED : HttpUtils.Match.UNDECIDED;
+        HttpUtils.HttpResult hr = HttpUtils.executeRequest("GET", url, matcher, false);
+        if (hr.code >= 300 && hr.code < 400 && hr.getHeader("Location") != null) {
+            String portal;
+            try {
+                portal = new URL(new URL(hr.url), hr.getHeader("Location")).toString();
+            } catch (MalformedURLException e) {
+                portal = hr.getHeader("Location");
+            }
+            Logger.log(Level.WARNING, "Redirected to portal " + portal);
+            Metrics.increment("probe_captured");
+            return new Detection(false, portal, hr.code);
+        }
+        if (hr.code != expectedCode) {
+            Logger.log(Level.WARNING, "Got response " + hr.code + " from " + url);
+            Metrics.increment("probe_bad_code");
+            return new Detection(false, null, hr.code);
+        }
+        if (expectedBody != null && !expectedBody.equals(hr.result)) {
+            Logger.log(Level.WARNING, "Unexpected content from " + url);
+            Metrics.increment("probe_captured");
+            return new Detection(false, null, hr.code);
+        }
+        Metrics.increment("probe_success");
+        return new Detection(true, null, hr.code);
+    }
+
+    private static boolean probe(String url, String head) {
+        Logger.log("Testing " + url);
+        HttpUtils.HttpResult hr = head == null ? HttpUtils.executeRequest("GET", url)
+                : HttpUtils.executeRequest("GET", url, HttpUtils.prefixMatcher(head));
+        if (hr.code != 200) {
+            Logger.log(Level.WARNING, "Got response " + hr.code + " from " + url);
+            Metrics.increment("probe_bad_code");
+            return false;
+        }
+        if (head != null && hr.match != HttpUtils.Match.MATCHED) {
+            String start = hr.result.trim();
+            Logger.log(Level.WARNING, "Invalid start of response from " + url + " : '" + start.substring(0, Math.min(head.length(), start.length())) + "'");
+            Metrics.increment("probe_bad_content");
+            return false;
+        }
+        Metrics.increment("probe_success");
+        return true;
+    }
+
+    /**
+     * The result of a lightweight detection probe.
+     */
+    static final class Detection {
+
+        final boolean connected;
+
+        /**
+         * The url we were redirected to, or null if none.
+         */
+        final String portal;
+
+        /**
+         * The http code of the probe answer, 0 if none.
+         */
+        final int code;
+
+        Detection(boolean connected, String portal, int code) {
+            this.connected = connected;
+            this.portal = portal;
+            this.code = code;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package fr.klemek.autologin;
+
+import fr.klemek.logger.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.openqa.selenium.Dimension;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.phantomjs.PhantomJSDriver;
+
+/**
+ * A small pool of started phantomJS sessions kept between login cycles (empty until configured).
+ * Sessions are reset when released, recycled after a number of uses or on error,
+ * and quit when idle for too long.
+ *
+ * @author Clement Gouin
+ */
+final class DriverPool {
+
+    private static final Deque<Session> IDLE = new ArrayDeque<>();
+    private static final Map<WebDriver, Session> ACTIVE = new IdentityHashMap<>();
+
+    private static int size = 0;
+    private static int maxUses = 10;
+    private static long idleTtl = TimeUnit.MINUTES.toMillis(5);
+    private static ScheduledExecutorService reaper;
+
+    private DriverPool() {
+    }
+
+    /**
+     * Configure the pool and start the reaper of idle sessions.
+     *
+     * @param poolSize the number of sessions to keep started
+     * @param uses     the number of logins a session can do before being recycled
+     * @param ttl      the time an idle session is kept in ms
+     */
+    static synchronized void configure(int poolSize, int uses, long ttl) {
+        size = poolSize;
+        maxUses = uses;
+        idleTtl = ttl;
+        if (reaper == null) {
+            reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "driver-reaper");
+                t.setDaemon(true);
+                return t;
+            });
+            reaper.scheduleWithFixedDelay(DriverPool::reap, ttl, Math.max(ttl / 2, 1000), TimeUnit.MILLISECONDS);
+            Runtime.getRuntime().addShutdownHook(new Thread(DriverPool::shutdown));
+        }
+    }
+
+    /**
+     * Start sessions in background until the pool is full.
+     */
+    static void warmUp() {
+        Thread t = new Thread(() -> {
+            while (true) {
+                synchronized (DriverPool.class) {
+                    if (IDLE.size() + ACTIVE.size() >= size)
+                        return;
+                }
+                Session session = create();
+                if (session == null)
+                    return;
+                synchronized (DriverPool.class) {
+                    IDLE.push(session);
+                }
+            }
+        }, "driver-warmup");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Get a healthy session, starting a new one if none is idle.
+     *
+     * @return the driver to use
+     */
+    static WebDriver acquire() {
+        while (true) {
+            Session session;
+            synchronized (DriverPool.class) {
+                session = IDLE.poll();
+            }
+            if (session == null)
+                session = create();
+            else if (!session.isHealthy()) {
+                Logger.log(Level.WARNING, "Dropping unhealthy phantomJS session");
+                session.quit();
+                continue;
+            }
+            if (session == null)
+                return null;
+            session.uses++;
+            synchronized (DriverPool.class) {
+                ACTIVE.put(session.driver, session);
+            }
+            return session.driver;
+        }
+    }
+
+    /**
+     * Give a session back to the pool.
+     *
+     * @param driver the driver to release
+     * @param failed true if the session ended with an error, it will be recycled
+     */
+    static void release(WebDriver driver, boolean failed) {
+        Session session;
+        synchronized (DriverPool.class) {
+            session = ACTIVE.remove(driver);
+        }
+        if (session == null) {
+            driver.quit();
+            return;
+        }
+        if (failed || session.uses >= maxUses || !session.reset()) {
+            Logger.log(Level.FINE, "Recycling phantomJS session after {0} uses", session.uses);
+            session.quit();
+            return;
+        }
+        synchronized (DriverPool.class) {
+            if (IDLE.size() + ACTIVE.size() >= size) {
+                session.quit();
+                return;
+            }
+            session.lastUsed = System.currentTimeMillis();
+            IDLE.push(session);
+        }
+    }
+
+    /**
+     * Quit all idle sessions.
+     */
+    static void shutdown() {
+        synchronized (DriverPool.class) {
+            for (Session session : IDLE)
+                session.quit();
+            IDLE.clear();
+        }
+    }
+
+    private static void reap() {
+        long now = System.currentTimeMillis();
+        synchronized (DriverPool.class) {
+            Iterator<Session> it = IDLE.iterator();
+            while (it.hasNext()) {
+                Session session = it.next();
+                if (now - session.lastUsed >= idleTtl) {
+                    Logger.log(Level.FINE, "Quitting idle phantomJS session");
+                    session.quit();
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private static Session create() {
+        Logger.log("Starting phantomJS...");
+        try {
+            long start = System.nanoTime();
+            WebDriver driver = new PhantomJSDriver();
+            driver.manage().window().setSize(new Dimension(1024, 768));
+            Metrics.time("driver_start", start);
+            return new Session(driver);
+        } catch (RuntimeException e) {
+            Logger.log(e);
+            return null;
+        }
+    }
+
+    private static class Session {
+
+        final WebDriver driver;
+        int uses = 0;
+        long lastUsed = System.currentTimeMillis();
+
+        Session(WebDriver driver) {
+            this.driver = driver;
+        }
+
+        boolean isHealthy() {
+            try {
+                driver.getCurrentUrl();
+                return true;
+            } catch (RuntimeException e) {
+                return false;
+            }
+        }
+
+        boolean reset() {
+            try {
+                driver.manage().deleteAllCookies();
+                ((JavascriptExecutor) driver).executeScript(
+                        "try { localStorage.clear(); sessionStorage.clear(); } catch (e) {}");
+                driver.get("about:blank");
+                return true;
+            } catch (RuntimeException e) {
+                Logger.log(Level.WARNING, "Cannot reset phantomJS session : " + e);
+                return false;
+            }
+        }
+
+        void quit() {
+            try {
+                driver.quit();
+            } catch (RuntimeException e) {
+                Logger.log(Level.FINE, e.toString());
+            }
+        }
+    }
+}
@@ -1,21 +1,48 @@
 package fr.klemek.autologin;
 
+import fr.klemek.logger.Logger;
+
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.CodeSource;
 import java.security.ProtectionDomain;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
 class Extractor {
 
+    private static final long TRANSFER_SIZE = 1024 * 1024;
+
+    /**
+     * Suffix of the stamp written next to a checked copy, holding its modification time and size.
+     */
+    private static final String STAMP_SUFFIX = ".ok";
+
+    /**
+     * Cached copies whose CRC was checked by this run.
+     */
+    private static final Set<Path> VERIFIED = ConcurrentHashMap.newKeySet();
+
     private static URI getJarURI()
             throws URISyntaxException {
         final ProtectionDomain domain;
@@ -32,6 +59,10 @@ class Extractor {
     }
 
     static URI getFile(final String fileName) throws IOException, URISyntaxException {
+        return getFile(fileName, new File(System.getProperty("java.io.tmpdir")));
+    }
+
+    static URI getFile(final String fileName, final File cacheDir) throws IOException, URISyntaxException {
         final File location;
         final URI fileURI;
 
@@ -48,7 +79,7 @@ class Extractor {
             zipFile = new ZipFile(location);
 
             try {
-                fileURI = extract(zipFile, fileName);
+                fileURI = extract(zipFile, fileName, cacheDir);
             } finally {
                 zipFile.close();
             }
@@ -57,32 +88,148 @@ class Extractor {
         return (fileURI);
     }
 
-    private static URI extract(final ZipFile zipFile,
-                               final String fileName)
+    /**
+     * Extract the entry into the cache directory, unless an executable copy of the same entry is already there.
+     * The copy is named after the entry CRC and size, and is written to a temp file then atomically renamed
+     * so concurrent runs never see a partial file. The CRC of a cached copy is checked the first time it is reused,
+     * then a stamp of its modification time and size spares the check to the next runs while they are unchanged.
+     */
+    static URI extract(final ZipFile zipFile,
+                       final String fileName,
+                       final File cacheDir)
             throws IOException {
-        final File tempFile;
         final ZipEntry entry;
+        final Path cached;
+        final Path tempFile;
 
-        tempFile = File.createTempFile(fileName, Long.toString(System.currentTimeMillis()));
-        tempFile.deleteOnExit();
         entry = zipFile.getEntry(fileName);
 
         if (entry == null) {
             throw new FileNotFoundException("cannot find file: " + fileName + " in archive: " + zipFile.getName());
         }
 
-        try (InputStream zipStream = zipFile.getInputStream(entry)) {
-            try (OutputStream fileStream = new FileOutputStream(tempFile)) {
-                final byte[] buf;
-                int i;
-                buf = new byte[1024];
-                i = 0;
-                while ((i = zipStream.read(buf)) != -1) {
-                    fileStream.write(buf, 0, i);
+        Files.createDirectories(cacheDir.toPath());
+        cached = cacheDir.toPath().resolve(getCacheName(entry));
+
+        if (isValid(cached, entry)) {
+            Logger.log(Level.FINE, "Using cached {0}", cached);
+            return (cached.toUri());
+        }
+
+        tempFile = Files.createTempFile(cacheDir.toPath(), cached.getFileName().toString(), ".part");
+
+        try {
+            try (ReadableByteChannel zipChannel = Channels.newChannel(zipFile.getInputStream(entry));
+                 FileChannel fileChannel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                long position = 0;
+                long count;
+                while ((count = fileChannel.transferFrom(zipChannel, position, TRANSFER_SIZE)) > 0) {
+                    position += count;
                 }
+                fileChannel.force(false);
+            }
+
+            if (!tempFile.toFile().setExecutable(true)) {
+                Logger.log(Level.WARNING, "Cannot make {0} executable", tempFile);
+            }
+
+            try {
+                move(tempFile, cached);
+                VERIFIED.add(cached);
+                writeStamp(cached);
+            } catch (FileAlreadyExistsException | AccessDeniedException e) {
+                // on Windows the target cannot be replaced, another run put it there and may be using it
+                if (!isValid(cached, entry)) {
+                    throw e;
+                }
+                Logger.log(Level.FINE, "{0} already extracted by another run", cached);
+            }
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+
+        return (cached.toUri());
+    }
+
+    private static void move(final Path source, final Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Tell if a cached copy is complete and executable, its CRC being checked once unless its stamp matches.
+     */
+    private static boolean isValid(final Path cached, final ZipEntry entry) throws IOException {
+        if (!Files.isRegularFile(cached) || Files.size(cached) != entry.getSize() || !Files.isExecutable(cached)) {
+            return (false);
+        }
+        if (VERIFIED.contains(cached)) {
+            return (true);
+        }
+        if (!getStamp(cached).equals(readStamp(cached))) {
+            if (getCrc(cached) != entry.getCrc()) {
+                Logger.log(Level.WARNING, "Cached {0} is corrupted, extracting it again", cached);
+                return (false);
             }
+            writeStamp(cached);
+        }
+        VERIFIED.add(cached);
+        return (true);
+    }
+
+    private static String getStamp(final Path file) throws IOException {
+        return (Files.getLastModifiedTime(file).toMillis() + " " + Files.size(file));
+    }
+
+    private static String readStamp(final Path file) {
+        final Path stamp = file.resolveSibling(file.getFileName() + STAMP_SUFFIX);
+
+        try {
+            return (new String(Files.readAllBytes(stamp), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            return ("");
         }
+    }
+
+    private static void writeStamp(final Path file) {
+        final Path stamp = file.resolveSibling(file.getFileName() + STAMP_SUFFIX);
 
-        return (tempFile.toURI());
+        try {
+            Files.write(stamp, getStamp(file).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Logger.log(Level.FINE, "Cannot write stamp of {0} : {1}", file, e);
+        }
+    }
+
+    private static long getCrc(final Path file) throws IOException {
+        final CRC32 crc = new CRC32();
+        final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) > 0) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+        return (crc.getValue());
+    }
+
+    private static String getCacheName(final ZipEntry entry) {
+        final String name;
+        final int dot;
+
+        name = new File(entry.getName()).getName();
+        dot = name.lastIndexOf('.');
+
+        final String key = Long.toHexString(entry.getCrc()) + "-" + entry.getSize();
+
+        if (dot > 0) {
+            return (name.substring(0, dot) + "-" + key + name.substring(dot));
+        }
+        return (name + "-" + key);
     }
 }
@@ -0,0 +1,87 @@
+package fr.klemek.autologin;
+
+import fr.klemek.logger.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+
+/**
+ * Check and log into several portals concurrently on a bounded pool.
+ *
+ * @author Clement Gouin
+ */
+final class Fleet {
+
+    private static ExecutorService executor;
+    private static int poolSize;
+
+    private Fleet() {
+    }
+
+    /**
+     * Run the check of every profile, concurrently if there are several of them.
+     *
+     * @param profiles the profiles to check
+     * @param threads  the maximum number of profiles checked at the same time
+     * @param check    the check of one profile (returns true if connected)
+     * @return true if all profiles are connected
+     */
+    static boolean checkAll(List<Profile> profiles, int threads, Predicate<Profile> check) {
+        if (profiles.size() == 1)
+            return check.test(profiles.get(0));
+
+        List<Future<Boolean>> results = new ArrayList<>();
+        ExecutorService pool = getExecutor(threads);
+        for (Profile profile : profiles)
+            results.add(pool.submit(() -> {
+                Thread.currentThread().setName("profile-" + profile);
+                return check.test(profile);
+            }));
+
+        boolean allConnected = true;
+        StringBuilder summary = new StringBuilder();
+        for (int i = 0; i < profiles.size(); i++) {
+            boolean connected;
+            try {
+                connected = results.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                connected = false;
+            } catch (ExecutionException e) {
+                Logger.log(Level.SEVERE, e.getCause());
+                connected = false;
+            }
+            allConnected &= connected;
+            summary.append(i == 0 ? "" : ", ").append(profiles.get(i)).append(connected ? " : connected" : " : failed");
+        }
+        Logger.log(allConnected ? Level.INFO : Level.WARNING, "Profiles : " + summary);
+        return allConnected;
+    }
+
+    /**
+     * @return the pool, created again when the number of threads changed (configuration reloaded),
+     * the previous one ends once its checks are done
+     */
+    private static synchronized ExecutorService getExecutor(int threads) {
+        int size = Math.max(threads, 1);
+        if (executor != null && poolSize != size) {
+            executor.shutdown();
+            executor = null;
+        }
+        if (executor == null) {
+            poolSize = size;
+            executor = Executors.newFixedThreadPool(size, r -> {
+                Thread t = new Thread(r);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return executor;
+    }
+}
@@ -0,0 +1,124 @@
+package fr.klemek.autologin;
+
+import fr.klemek.logger.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebDriverException;
+
+/**
+ * Capture the requests the browser sends when the login button is clicked, to build a LoginFlow.
+ * The login form is serialized as the browser would submit it, and scripted requests (XMLHttpRequest)
+ * are collected by a hook installed in the page before the click.
+ *
+ * @author Clement Gouin
+ */
+final class FlowRecorder {
+
+    private static final String HOOK_SCRIPT = "window.__autologin = [];"
+            + "var xhr = XMLHttpRequest.prototype, open = xhr.open, send = xhr.send, header = xhr.setRequestHeader;"
+            + "xhr.open = function (method, url) {"
+            + "  var a = document.createElement('a'); a.href = url;"
+            + "  this.__autologin = {method: method, url: a.href, type: null};"
+            + "  return open.apply(this, arguments); };"
+            + "xhr.setRequestHeader = function (name, value) {"
+            + "  if (this.__autologin && name.toLowerCase() === 'content-type') this.__autologin.type = value;"
+            + "  return header.apply(this, arguments); };"
+            + "xhr.send = function (body) {"
+            + "  if (this.__autologin) {"
+            + "    this.__autologin.body = body == null ? null : String(body);"
+            + "    window.__autologin.push(this.__autologin); }"
+            + "  return send.apply(this, arguments); };";
+
+    private static final String FORM_SCRIPT = "var button = document.getElementById(arguments[0]);"
+            + "var form = button && button.form;"
+            + "if (!form) return null;"
+            + "var fields = [];"
+            + "for (var i = 0; i < form.elements.length; i++) {"
+            + "  var e = form.elements[i], type = (e.type || '').toLowerCase();"
+            + "  if (!e.name || e.disabled || type === 'file') continue;"
+            + "  if ((type === 'checkbox' || type === 'radio') && !e.checked) continue;"
+            + "  if (/^(submit|button|image|reset)$/.test(type) && e !== button) continue;"
+            + "  if (e.tagName === 'SELECT' && e.multiple) {"
+            + "    for (var j = 0; j < e.options.length; j++)"
+            + "      if (e.options[j].selected) fields.push(encodeURIComponent(e.name) + '='"
+            + "        + encodeURIComponent(e.options[j].value));"
+            + "    continue; }"
+            + "  fields.push(encodeURIComponent(e.name) + '=' + encodeURIComponent(e.value)); }"
+            + "return {action: form.action, method: form.method || 'get', enctype: form.enctype,"
+            + "  data: fields.join('&').replace(/%20/g, '+')};";
+
+    private final WebDriver driver;
+    private final String pageSource;
+    private final Map<?, ?> form;
+
+    private FlowRecorder(WebDriver driver, String pageSource, Map<?, ?> form) {
+        this.driver = driver;
+        this.pageSource = pageSource;
+        this.form = form;
+    }
+
+    /**
+     * Start recording, to call once the fields are filled and just before clicking the button.
+     *
+     * @param driver   the driver showing the login page
+     * @param buttonId the DOM id of the login button
+     * @return the recorder or null if the page cannot be instrumented
+     */
+    static FlowRecorder start(WebDriver driver, String buttonId) {
+        if (!(driver instanceof JavascriptExecutor))
+            return null;
+        try {
+            JavascriptExecutor js = (JavascriptExecutor) driver;
+            String pageSource = driver.getPageSource();
+            Object form = js.executeScript(FORM_SCRIPT, buttonId);
+            js.executeScript(HOOK_SCRIPT);
+            return new FlowRecorder(driver, pageSource, form instanceof Map ? (Map<?, ?>) form : null);
+        } catch (WebDriverException e) {
+            Logger.log(Level.WARNING, "Cannot record login flow : " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Collect the scripted requests sent since the start, to call just after clicking the button.
+     * If there are none, the submission of the form is used instead.
+     *
+     * @return the requests sent by the browser
+     */
+    List<LoginFlow.Step> requests() {
+        List<LoginFlow.Step> requests = new ArrayList<>();
+        try {
+            Object sent = ((JavascriptExecutor) driver).executeScript("return window.__autologin || [];");
+            if (sent instanceof List)
+                for (Object item : (List<?>) sent)
+                    if (item instanceof Map) {
+                        Map<?, ?> request = (Map<?, ?>) item;
+                        requests.add(new LoginFlow.Step(String.valueOf(request.get("method")),
+                                String.valueOf(request.get("url")),
+                                request.get("type") == null ? null : String.valueOf(request.get("type")),
+                                request.get("body") == null ? null : String.valueOf(request.get("body"))));
+                    }
+        } catch (WebDriverException e) {
+            Logger.log(Level.FINE, "Page changed before scripted requests were collected : {0}", e.getMessage());
+        }
+        if (requests.isEmpty() && form != null) {
+            String action = String.valueOf(form.get("action"));
+            String data = String.valueOf(form.get("data"));
+            if ("get".equalsIgnoreCase(String.valueOf(form.get("method"))))
+                requests.add(new LoginFlow.Step("GET", action.replaceAll("\\?.*", "") + "?" + data, null, null));
+            else if (!"multipart/form-data".equalsIgnoreCase(String.valueOf(form.get("enctype"))))
+                requests.add(new LoginFlow.Step("POST", action, "application/x-www-form-urlencoded", data));
+        }
+        return requests;
+    }
+
+    String getPageSource() {
+        return pageSource;
+    }
+}
@@ -0,0 +1,257 @@
+package fr.klemek.autologin;
+
+import fr.klemek.logger.Logger;
+
+import java.net.CookieManager;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A login engine submitting the portal form with plain http requests, without any browser.
+ *
+ * @author Clement Gouin
+ */
+final class FormLogin {
+
+    private static final Pattern FORM_PATTERN = Pattern.compile("<form\\b([^>]*)>(.*?)</form\\s*>",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern INPUT_PATTERN = Pattern.compile("<(input|button)\\b([^>]*)>",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern ATTRIBUTE_PATTERN = Pattern.compile(
+            "([a-zA-Z_:][-a-zA-Z0-9_:.]*)(?:\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s\"'>]+)))?");
+    private static final Pattern TITLE_PATTERN = Pattern.compile("<title[^>]*>(.*?)</title\\s*>",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private FormLogin() {
+    }
+
+    enum Result {
+        /**
+         * The form was submitted and the portal did not return the login page again.
+         */
+        SUCCESS,
+        /**
+         * The form cannot be found in the static page (probably built by javascript).
+         */
+        UNRESOLVED,
+        /**
+         * The form was submitted but the portal refused it.
+         */
+        FAILED
+    }
+
+    /**
+     * Fetch the login page, resolve the form holding the configured fields and submit it.
+     *
+     * @param params  the login parameters (see App.loadParams)
+     * @param cookies the cookies of the profile
+     * @return the outcome of the login
+     */
+    static Result login(Map<String, String> params, CookieManager cookies) {
+        return login(params, cookies, null);
+    }
+
+    /**
+     * Fetch the login page, resolve the form holding the configured fields and submit it.
+     *
+     * @param params     the login parameters (see App.loadParams)
+     * @param cookies    the cookies of the profile
+     * @param onResponse given the response to the form whatever the outcome (can be null)
+     * @return the outcome of the login
+     */
+    static Result login(Map<String, String> params, CookieManager cookies, Consumer<HttpUtils.HttpResult> onResponse) {
+        String address = params.get("address");
+        Logger.log("Fetching " + address + " ...");
+        HttpUtils.HttpResult page = HttpUtils.executeRequest("GET", address, cookies);
+        if (page.code != 200 || page.result == null) {
+            Logger.log(Level.WARNING, "Cannot fetch login page (response {0})", page.code);
+            return Result.UNRESOLVED;
+        }
+
+        if (params.containsKey("page_title")) {
+            Matcher title = TITLE_PATTERN.matcher(page.result);
+            if (!title.find() || !unescape(title.group(1).trim()).equals(params.get("page_title"))) {
+                Logger.log(Level.WARNING, "Page title not found in static page");
+                return Result.UNRESOLVED;
+            }
+        }
+
+        Form form = findForm(page.result, params.get("username_field_id"));
+        if (form == null) {
+            Logger.log(Level.WARNING, "Cannot find login form in static page");
+            return Result.UNRESOLVED;
+        }
+
+        String loginName = form.names.get(params.get("username_field_id"));
+        String passName = form.names.get(params.get("pass_field_id"));
+        if (loginName == null || passName == null) {
+            Logger.log(Level.WARNING, "Input fields are missing or have no name");
+            return Result.UNRESOLVED;
+        }
+        if (!form.names.containsKey(params.get("button_id")) && !form.buttons.contains(params.get("button_id"))) {
+            Logger.log(Level.WARNING, "Cannot find button in login form");
+            return Result.UNRESOLVED;
+        }
+
+        Logger.log("Detected login form");
+
+        form.fields.put(loginName, new String[]{params.get("login")});
+        form.fields.put(passName, new String[]{params.get("pass")});
+        String buttonName = form.names.get(params.get("button_id"));
+        if (buttonName != null)
+            form.fields.put(buttonName, new String[]{form.buttonValues.get(params.get("button_id"))});
+
+        String action;
+        try {
+            action = resolveAction(form, page.url == null ? address : page.url);
+        } catch (MalformedURLException e) {
+            Logger.log(Level.WARNING, "Invalid form action : {0}", form.action);
+            return Result.UNRESOLVED;
+        }
+
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Referer", address);
+
+        HttpUtils.HttpResult hr;
+        if ("get".equalsIgnoreCase(form.method)) {
+            Logger.log("Sending form to " + action + " (GET) ...");
+            hr = HttpUtils.executeRequest("GET", action, form.fields, headers, cookies);
+        } else {
+            Logger.log("Sending form to " + action + " ...");
+            hr = HttpUtils.executeFormRequest(action, form.fields, headers, cookies);
+        }
+        if (onResponse != null)
+            onResponse.accept(hr);
+
+        if (hr.code < 200 || hr.code >= 400) {
+            Logger.log(Level.WARNING, "Form refused with response {0}", hr.code);
+            return Result.FAILED;
+        }
+        if (hr.result != null && findForm(hr.result, params.get("pass_field_id")) != null) {
+            Logger.log(Level.WARNING, "Login page returned again, form refused");
+            return Result.FAILED;
+        }
+        Logger.log("Form sent successfully");
+        return Result.SUCCESS;
+    }
+
+    /**
+     * Find the form containing the element with the given id.
+     *
+     * @param html    the page source
+     * @param fieldId the DOM id to look for
+     * @return the parsed form or null if not found
+     */
+    static Form findForm(String html, String fieldId) {
+        Matcher formMatcher = FORM_PATTERN.matcher(html);
+        while (formMatcher.find()) {
+            Form form = new Form(parseAttributes(formMatcher.group(1)));
+            Matcher inputMatcher = INPUT_PATTERN.matcher(formMatcher.group(2));
+            while (inputMatcher.find())
+                form.add(inputMatcher.group(1).toLowerCase(), parseAttributes(inputMatcher.group(2)));
+            if (form.ids.contains(fieldId))
+                return form;
+        }
+        return null;
+    }
+
+    /**
+     * @param form the parsed form
+     * @param base the url of the page holding the form
+     * @return the absolute url the form is sent to, the page itself if it has no action
+     * @throws MalformedURLException if the action is not a valid url
+     */
+    static String resolveAction(Form form, String base) throws MalformedURLException {
+        return form.action == null || form.action.isEmpty() ? base : new URL(new URL(base), form.action).toString();
+    }
+
+    /**
+     * Find the value of a named field in any form of the page.
+     *
+     * @param html the page source
+     * @param name the name of the field
+     * @return the value or null if not found
+     */
+    static String findValue(String html, String name) {
+        Matcher formMatcher = FORM_PATTERN.matcher(html);
+        while (formMatcher.find()) {
+            Form form = new Form(parseAttributes(formMatcher.group(1)));
+            Matcher inputMatcher = INPUT_PATTERN.matcher(formMatcher.group(2));
+            while (inputMatcher.find())
+                form.add(inputMatcher.group(1).toLowerCase(), parseAttributes(inputMatcher.group(2)));
+            if (form.fields.containsKey(name))
+                return form.fields.get(name)[0];
+        }
+        return null;
+    }
+
+    private static Map<String, String> parseAttributes(String tag) {
+        Map<String, String> attributes = new HashMap<>();
+        Matcher m = ATTRIBUTE_PATTERN.matcher(tag);
+        while (m.find()) {
+            String value = m.group(2) != null ? m.group(2) : m.group(3) != null ? m.group(3) : m.group(4);
+            attributes.put(m.group(1).toLowerCase(), value == null ? "" : unescape(value));
+        }
+        return attributes;
+    }
+
+    private static String unescape(String value) {
+        return value.replace("&quot;", "\"")
+                .replace("&#39;", "'")
+                .replace("&lt;", "<")
+                .replace("&gt;", ">")
+                .replace("&amp;", "&");
+    }
+
+    /**
+     * A statically parsed html form.
+     */
+    static class Form {
+
+        final String action;
+        final String method;
+        final Map<String, String[]> fields = new LinkedHashMap<>();
+        final Map<String, String> names = new HashMap<>();
+        final Map<String, String> buttonValues = new HashMap<>();
+        final Set<String> ids = new HashSet<>();
+        final Set<String> buttons = new HashSet<>();
+
+        Form(Map<String, String> attributes) {
+            this.action = attributes.get("action");
+            this.method = attributes.get("method");
+        }
+
+        private void add(String tag, Map<String, String> attributes) {
+            String id = attributes.get("id");
+            String name = attributes.get("name");
+            String type = attributes.containsKey("type") ? attributes.get("type").toLowerCase() : "";
+            String value = attributes.containsKey("value") ? attributes.get("value") : "";
+            boolean button = "button".equals(tag) || "submit".equals(type) || "button".equals(type)
+                    || "image".equals(type) || "reset".equals(type);
+            if (id != null) {
+                ids.add(id);
+                if (button)
+                    buttons.add(id);
+                if (name != null && !name.isEmpty()) {
+                    names.put(id, name);
+                    if (button)
+                        buttonValues.put(id, value);
+                }
+            }
+            if (button || name == null || name.isEmpty())
+                return;
+            if (("checkbox".equals(type) || "radio".equals(type)) && !attributes.containsKey("checked"))
+                return;
+            fields.put(name, new String[]{value});
+        }
+    }
+}
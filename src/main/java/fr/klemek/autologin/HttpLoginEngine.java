@@ -0,0 +1,54 @@
+package fr.klemek.autologin;
+
+import fr.klemek.logger.Logger;
+
+import java.net.HttpCookie;
+import java.util.Collections;
+import java.util.logging.Level;
+
+/**
+ * Log in without browser : replay the recorded flow of the portal if any, else send the login form as parsed.
+ *
+ * @author Clement Gouin
+ */
+final class HttpLoginEngine implements LoginEngine {
+
+    @Override
+    public String name() {
+        return "http";
+    }
+
+    @Override
+    public FormLogin.Result login(Profile profile) {
+        LoginFlow flow = LoginFlow.get(profile);
+        if (flow != null) {
+            long start = System.nanoTime();
+            HttpUtils.HttpResult hr = flow.replay(profile.params, profile.cookies,
+                    response -> profile.loginCode = response.code);
+            Metrics.time("replay_login", start);
+            if (hr != null && App.verifyConnection(profile)) {
+                SessionStore.capture(profile, hr.url == null ? profile.params.get("address") : hr.url,
+                        hr.result, Collections.<HttpCookie>emptyList());
+                return FormLogin.Result.SUCCESS;
+            }
+            Logger.log(Level.WARNING, "Recorded flow failed, it will be recorded again");
+            LoginFlow.remove(profile);
+        }
+
+        long start = System.nanoTime();
+        HttpUtils.HttpResult[] response = new HttpUtils.HttpResult[1];
+        FormLogin.Result result = FormLogin.login(profile.params, profile.cookies, hr -> {
+            response[0] = hr;
+            profile.loginCode = hr.code;
+        });
+        Metrics.time("http_login", start);
+        if (result == FormLogin.Result.FAILED)
+            return result;
+        if (result == FormLogin.Result.SUCCESS && App.verifyConnection(profile)) {
+            SessionStore.capture(profile, response[0].url == null ? profile.params.get("address")
+                    : response[0].url, response[0].result, Collections.<HttpCookie>emptyList());
+            return result;
+        }
+        return FormLogin.Result.UNRESOLVED;
+    }
+}
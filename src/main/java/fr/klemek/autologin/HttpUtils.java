@@ -3,7 +3,6 @@ package fr.klemek.autologin;
 import fr.klemek.logger.Logger;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedReader;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -11,16 +10,26 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.net.CookieManager;
 import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 
 import org.json.JSONException;
@@ -37,9 +46,116 @@ public final class HttpUtils {
 
     private static final List<String> SUPPORTED_METHODS = new ArrayList<>(Arrays.asList("GET", "PUT", "POST", "DELETE"));
 
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Bodies we do not need are drained up to this size to keep the connection alive, bigger ones are dropped.
+     */
+    private static final int DISCARD_LIMIT = 64 * 1024;
+
+    /**
+     * The only headers of the caller still sent after a redirect to another host.
+     */
+    private static final List<String> SAFE_HEADERS = Arrays.asList("accept", "accept-language", "user-agent");
+
+    private static final List<Integer> REDIRECT_CODES = new ArrayList<>(Arrays.asList(301, 302, 303, 307, 308));
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "http");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Values hidden in the logs, like the password.
+     */
+    private static final Set<String> SECRETS = ConcurrentHashMap.newKeySet();
+
+    private static int connectTimeout = 0;
+    private static int readTimeout = 0;
+    private static int maxRedirects = 5;
+    private static int maxBodySize = 4 * 1024 * 1024;
+
+    static {
+        // the Host header is set when connecting to a pre-resolved address
+        System.setProperty("sun.net.http.allowRestrictedHeaders", "true");
+        // an unread body closes the connection, else the JDK downloads up to 512 kB of it in background to reuse it
+        if (System.getProperty("http.KeepAlive.remainingData") == null)
+            System.setProperty("http.KeepAlive.remainingData", "0");
+    }
+
     private HttpUtils() {
     }
 
+    /**
+     * Set the timeouts used by the next requests.
+     *
+     * @param connect the connect timeout in ms (0 for none)
+     * @param read    the read timeout in ms (0 for none)
+     */
+    public static void setTimeouts(int connect, int read) {
+        connectTimeout = connect;
+        readTimeout = read;
+    }
+
+    /**
+     * Set the maximum number of redirects followed by a request.
+     *
+     * @param max the maximum number of redirects (0 to never follow them)
+     */
+    public static void setMaxRedirects(int max) {
+        maxRedirects = max;
+    }
+
+    /**
+     * Set the maximum number of chars read from a response, the rest is dropped.
+     *
+     * @param max the maximum body size in chars
+     */
+    public static void setMaxBodySize(int max) {
+        maxBodySize = max;
+    }
+
+    /**
+     * Set the maximum number of idle connections kept alive per host.
+     * Must be called before the first request.
+     *
+     * @param max the maximum number of idle connections per host
+     */
+    public static void setMaxConnections(int max) {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(max));
+    }
+
+    /**
+     * Hide a value in the logged requests, as it is, url encoded and escaped in a JSON string.
+     *
+     * @param value the value to hide
+     */
+    public static void addSecret(String value) {
+        if (value == null || value.isEmpty())
+            return;
+        SECRETS.add(value);
+        String quoted = JSONObject.quote(value);
+        SECRETS.add(quoted.substring(1, quoted.length() - 1));
+        try {
+            SECRETS.add(URLEncoder.encode(value, ENCODING));
+        } catch (UnsupportedEncodingException e) {
+            Logger.log(Level.WARNING, e.toString());
+        }
+    }
+
+    /**
+     * @param text a text to log
+     * @return the text with the secret values masked
+     */
+    static String redact(String text) {
+        String result = text;
+        for (String secret : SECRETS)
+            result = result.replace(secret, Utils.hideString(secret.length()));
+        return result;
+    }
+
     /**
      * Execute an http/https request.
      *
@@ -48,7 +164,19 @@ public final class HttpUtils {
      * @return the results of the request
      */
     public static HttpResult executeRequest(String sMethod, String sUrl) {
-        return executeRequest(sMethod, sUrl, null, null, null);
+        return executeRequest(sMethod, sUrl, (CookieManager) null);
+    }
+
+    /**
+     * Execute an http/https request.
+     *
+     * @param sMethod the http method
+     * @param sUrl    the url to reach
+     * @param cookies the cookies sent and updated along the redirects (or null to not handle cookies)
+     * @return the results of the request
+     */
+    public static HttpResult executeRequest(String sMethod, String sUrl, CookieManager cookies) {
+        return executeRequest(sMethod, sUrl, null, null, cookies);
     }
 
     /**
@@ -62,7 +190,22 @@ public final class HttpUtils {
      */
     public static HttpResult executeRequest(String sMethod, String sUrl, Map<String, String[]> params,
                                             Map<String, String> headers) {
-        return executeRequest(sMethod, sUrl, params, headers, null);
+        return executeRequest(sMethod, sUrl, params, headers, (CookieManager) null);
+    }
+
+    /**
+     * Execute an http/https request.
+     *
+     * @param sMethod the http method
+     * @param sUrl    the url to reach
+     * @param params  the url parameters (or null if not needed)
+     * @param headers additional headers for the request (or null if not needed)
+     * @param cookies the cookies sent and updated along the redirects (or null to not handle cookies)
+     * @return the results of the request
+     */
+    public static HttpResult executeRequest(String sMethod, String sUrl, Map<String, String[]> params,
+                                            Map<String, String> headers, CookieManager cookies) {
+        return executeRequest(sMethod, sUrl, params, headers, null, null, null, maxRedirects, cookies);
     }
 
     /**
@@ -77,82 +220,434 @@ public final class HttpUtils {
      */
     public static HttpResult executeRequest(String sMethod, String sUrl, Map<String, String[]> params,
                                             Map<String, String> headers, JSONObject data) {
+        if (data == null)
+            return executeRequest(sMethod, sUrl, params, headers, null, null, null, maxRedirects, null);
+        Logger.log(Level.FINER, "\tdata : {0}", redact(data.toString()));
+        return executeRequest(sMethod, sUrl, params, headers, data.toString().getBytes(), "application/json", null,
+                maxRedirects, null);
+    }
+
+    /**
+     * Execute an http/https request with a raw body.
+     *
+     * @param sMethod     the http method
+     * @param sUrl        the url to reach
+     * @param headers     additional headers for the request (or null if not needed)
+     * @param body        the content of the request (or null if not needed)
+     * @param contentType the type of the content
+     * @param cookies     the cookies sent and updated along the redirects (or null to not handle cookies)
+     * @return the results of the request
+     */
+    public static HttpResult executeRawRequest(String sMethod, String sUrl, Map<String, String> headers, String body,
+                                               String contentType, CookieManager cookies) {
+        if (body == null)
+            return executeRequest(sMethod, sUrl, null, headers, null, null, null, maxRedirects, cookies);
+        Logger.log(Level.FINER, "\tbody : {0}", redact(body));
+        try {
+            return executeRequest(sMethod, sUrl, null, headers, body.getBytes(ENCODING), contentType, null,
+                    maxRedirects, cookies);
+        } catch (UnsupportedEncodingException e) {
+            Logger.log(Level.WARNING, e.toString());
+            return new HttpResult(0, "", new HashMap<>(0));
+        }
+    }
+
+    /**
+     * Execute an http/https POST request with an url encoded form as body.
+     *
+     * @param sUrl    the url to reach
+     * @param form    the form fields to send
+     * @param headers additional headers for the request (or null if not needed)
+     * @param cookies the cookies sent and updated along the redirects (or null to not handle cookies)
+     * @return the results of the request
+     */
+    public static HttpResult executeFormRequest(String sUrl, Map<String, String[]> form, Map<String, String> headers,
+                                                CookieManager cookies) {
+        String body = getParametersString(form).substring(1);
+        Logger.log(Level.FINER, "\tform : {0}", redact(body));
+        try {
+            return executeRequest("POST", sUrl, null, headers, body.getBytes(ENCODING),
+                    "application/x-www-form-urlencoded", null, maxRedirects, cookies);
+        } catch (UnsupportedEncodingException e) {
+            Logger.log(Level.WARNING, e.toString());
+            return new HttpResult(0, "", new HashMap<>(0));
+        }
+    }
+
+    /**
+     * Execute an http/https request and stream its content into the matcher,
+     * the connection is closed as soon as the matcher takes a decision.
+     *
+     * @param sMethod the http method
+     * @param sUrl    the url to reach
+     * @param matcher the matcher deciding on the content read so far
+     * @return the results of the request, holding only the content read
+     */
+    public static HttpResult executeRequest(String sMethod, String sUrl, BodyMatcher matcher) {
+        return executeRequest(sMethod, sUrl, matcher, true);
+    }
+
+    /**
+     * Execute an http/https request and stream its content into the matcher,
+     * the connection is closed as soon as the matcher takes a decision.
+     *
+     * @param sMethod         the http method
+     * @param sUrl            the url to reach
+     * @param matcher         the matcher deciding on the content read so far (or null to read everything)
+     * @param followRedirects false to return redirects as they are instead of following them
+     * @return the results of the request, holding only the content read
+     */
+    public static HttpResult executeRequest(String sMethod, String sUrl, BodyMatcher matcher, boolean followRedirects) {
+        return executeRequest(sMethod, sUrl, null, null, null, null, matcher, followRedirects ? maxRedirects : 0,
+                null);
+    }
+
+    /**
+     * Download the beginning of a resource and drop it, to measure the throughput.
+     *
+     * @param sUrl     the url to reach
+     * @param maxBytes the number of bytes to read at most
+     * @return the number of bytes read, or -1 if the request failed
+     */
+    public static long executeDownload(String sUrl, long maxBytes) {
+        Logger.log(Level.FINE, "Download of {0} bytes from {1}", maxBytes, sUrl);
+        try {
+            HttpURLConnection conn = openConnection(new URL(sUrl), "GET",
+                    Collections.singletonMap("Range", "bytes=0-" + (maxBytes - 1)));
+            int code = conn.getResponseCode();
+            if (code != 200 && code != 206) {
+                Logger.log(Level.WARNING, "Got response " + code + " from " + sUrl);
+                discard(conn);
+                return -1;
+            }
+            long total = 0;
+            InputStream in = conn.getInputStream();
+            byte[] buf = new byte[BUFFER_SIZE];
+            int n;
+            while (total < maxBytes && (n = in.read(buf, 0, (int) Math.min(buf.length, maxBytes - total))) > 0)
+                total += n;
+            // the server may ignore the range, the rest must not be downloaded in background
+            if (total < maxBytes)
+                in.close();
+            else
+                conn.disconnect();
+            return total;
+        } catch (IOException e) {
+            Logger.log(Level.WARNING, e.toString());
+            return -1;
+        }
+    }
+
+    /**
+     * Execute an http/https request in background.
+     *
+     * @param sMethod the http method
+     * @param sUrl    the url to reach
+     * @return a future holding the results of the request
+     */
+    public static CompletableFuture<HttpResult> executeRequestAsync(String sMethod, String sUrl) {
+        return executeRequestAsync(sMethod, sUrl, null, null);
+    }
+
+    /**
+     * Execute an http/https request in background.
+     *
+     * @param sMethod the http method
+     * @param sUrl    the url to reach
+     * @param params  the url parameters (or null if not needed)
+     * @param headers additional headers for the request (or null if not needed)
+     * @return a future holding the results of the request
+     */
+    public static CompletableFuture<HttpResult> executeRequestAsync(String sMethod, String sUrl,
+                                                                    Map<String, String[]> params,
+                                                                    Map<String, String> headers) {
+        return CompletableFuture.supplyAsync(() -> executeRequest(sMethod, sUrl, params, headers), EXECUTOR);
+    }
+
+    private static HttpResult executeRequest(String sMethod, String sUrl, Map<String, String[]> params,
+                                             Map<String, String> headers, byte[] body, String contentType,
+                                             BodyMatcher matcher, int redirectLimit, CookieManager cookies) {
         StringBuilder result = new StringBuilder();
+        Match match = Match.UNDECIDED;
         int responseCode = 0;
         Map<String, List<String>> responseHeaders = new HashMap<>(0);
-        URL url;
+        List<String> redirects = new ArrayList<>(0);
+        URL url = null;
         HttpURLConnection conn = null;
         try {
-            Logger.log(Level.FINE, "{0} request to {1}{2}", sMethod, sUrl, getParametersString(params));
+            Logger.log(Level.FINE, "{0} request to {1}", sMethod, redact(sUrl + getParametersString(params)));
 
             url = new URL(sUrl + getParametersString(params));
 
-            conn = (HttpURLConnection) url.openConnection();
+            while (true) {
+                conn = openConnection(url, sMethod, headers);
+                sendCookies(conn, url, cookies);
 
-            if (SUPPORTED_METHODS.contains(sMethod))
-                conn.setRequestMethod(sMethod);
-            else {
-                conn.setRequestMethod("POST");
-                conn.setRequestProperty("X-HTTP-Method-Override", sMethod);
-            }
-            conn.setDoInput(true);
-            conn.setRequestProperty("Content-Encoding", ENCODING);
+                if (body != null) {
+                    conn.setRequestProperty("Content-Type", contentType);
+                    conn.setRequestProperty("Content-Length", String.valueOf(body.length));
+                    conn.setDoOutput(true);
 
-            if (headers != null)
-                for (Map.Entry<String, String> entry : headers.entrySet()) {
-                    Logger.log(Level.FINER, "\theader {0} : {1}", entry.getKey(), entry.getValue());
-                    conn.setRequestProperty(entry.getKey(), entry.getValue());
+                    try (DataOutputStream wr = new DataOutputStream(conn.getOutputStream())) {
+                        wr.write(body);
+                    }
                 }
 
-            if (data != null) {
-                Logger.log(Level.FINER, "\tdata : {0}", data.toString());
-                conn.setRequestProperty("Content-Type", "application/json");
-                byte[] bData = data.toString().getBytes();
-                conn.setRequestProperty("Content-Length", String.valueOf(bData.length));
-                conn.setDoOutput(true);
+                responseCode = conn.getResponseCode();
+                keepCookies(conn, url, cookies);
 
-                try (DataOutputStream wr = new DataOutputStream(conn.getOutputStream())) {
-                    wr.write(bData);
-                }
-            }
+                if (!REDIRECT_CODES.contains(responseCode) || conn.getHeaderField("Location") == null)
+                    break;
 
-            responseCode = conn.getResponseCode();
+                if (redirects.size() >= redirectLimit) {
+                    if (redirectLimit > 0)
+                        Logger.log(Level.WARNING, "Too many redirects from {0}", sUrl);
+                    break;
+                }
 
-            if (responseCode == 301 || responseCode == 302) {
-                String newURL = conn.getHeaderField("Location");
-                Logger.log(Level.FINE, "Redirected to {0}", newURL);
-                return executeRequest(sMethod, newURL, params, headers);
+                URL newURL = new URL(url, conn.getHeaderField("Location"));
+                Logger.log(Level.FINE, "Redirected to {0}", redact(newURL.toString()));
+                discard(conn);
+                redirects.add(newURL.toString());
+                if (headers != null && !isSameOrigin(url, newURL))
+                    headers = safeHeaders(headers);
+                url = newURL;
+                if (responseCode == 303 || (responseCode < 307 && body != null)) {
+                    sMethod = "GET";
+                    body = null;
+                }
             }
 
-            readInputStream(result, conn.getInputStream());
             responseHeaders = conn.getHeaderFields();
+            match = readBody(conn, conn.getInputStream(), result, matcher);
         } catch (IOException e) {
-            Logger.log(Level.SEVERE, e.toString());
+            Logger.log(Level.SEVERE, redact(e.toString()));
             if (conn != null && responseCode >= 200)
                 try {
-                    readInputStream(result, conn.getErrorStream());
+                    match = readBody(conn, conn.getErrorStream(), result, matcher);
                 } catch (IOException e1) {
-                    Logger.log(Level.WARNING, e.toString());
+                    Logger.log(Level.WARNING, redact(e1.toString()));
                 }
         }
         Logger.log(Level.FINE, "response : {0}", result.toString().replace("\n", ""));
-        return new HttpResult(responseCode, result.toString(), responseHeaders);
+        return new HttpResult(responseCode, result.toString(), responseHeaders,
+                url == null ? sUrl : url.toString(), redirects, match);
+    }
+
+    /**
+     * @return true if the redirect stays on the same host and port without going from https to http
+     */
+    private static boolean isSameOrigin(URL from, URL to) {
+        return from.getHost().equalsIgnoreCase(to.getHost())
+                && (from.getPort() == -1 ? from.getDefaultPort() : from.getPort())
+                == (to.getPort() == -1 ? to.getDefaultPort() : to.getPort())
+                && !("https".equals(from.getProtocol()) && !"https".equals(to.getProtocol()));
+    }
+
+    /**
+     * @return the headers that can follow a redirect to another host, credentials and cookies are dropped
+     */
+    private static Map<String, String> safeHeaders(Map<String, String> headers) {
+        Map<String, String> safe = new HashMap<>();
+        for (Map.Entry<String, String> entry : headers.entrySet())
+            if (SAFE_HEADERS.contains(entry.getKey().toLowerCase()))
+                safe.put(entry.getKey(), entry.getValue());
+            else
+                Logger.log(Level.FINE, "Header {0} not sent to the redirect target", entry.getKey());
+        return safe;
     }
 
     /**
-     * Read an InputStream into a StringBuilder.
+     * Set the Cookie header from the cookies matching the url, the connection may target a pinned address
+     * so the default cookie handler would not match them.
+     */
+    private static void sendCookies(HttpURLConnection conn, URL url, CookieManager cookies) throws IOException {
+        if (cookies == null)
+            return;
+        try {
+            List<String> values = cookies.get(url.toURI(), Collections.<String, List<String>>emptyMap()).get("Cookie");
+            if (values != null && !values.isEmpty())
+                conn.setRequestProperty("Cookie", String.join("; ", values));
+        } catch (URISyntaxException e) {
+            Logger.log(Level.FINE, "No cookies for invalid uri {0}", redact(url.toString()));
+        }
+    }
+
+    private static void keepCookies(HttpURLConnection conn, URL url, CookieManager cookies) throws IOException {
+        if (cookies == null)
+            return;
+        try {
+            cookies.put(url.toURI(), conn.getHeaderFields());
+        } catch (URISyntaxException e) {
+            Logger.log(Level.FINE, "No cookies for invalid uri {0}", redact(url.toString()));
+        }
+    }
+
+    private static HttpURLConnection openConnection(URL url, String sMethod, Map<String, String> headers)
+            throws IOException {
+        URL target = Resolver.pin(url);
+        HttpURLConnection conn = (HttpURLConnection) target.openConnection();
+        if (target != url)
+            conn.setRequestProperty("Host", url.getPort() == -1 ? url.getHost() : url.getHost() + ":" + url.getPort());
+        conn.setConnectTimeout(connectTimeout);
+        conn.setReadTimeout(readTimeout);
+        conn.setInstanceFollowRedirects(false);
+
+        if (SUPPORTED_METHODS.contains(sMethod))
+            conn.setRequestMethod(sMethod);
+        else {
+            conn.setRequestMethod("POST");
+            conn.setRequestProperty("X-HTTP-Method-Override", sMethod);
+        }
+        conn.setDoInput(true);
+        conn.setRequestProperty("Content-Encoding", ENCODING);
+
+        if (headers != null)
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                Logger.log(Level.FINER, "\theader {0} : {1}", entry.getKey(), entry.getValue());
+                conn.setRequestProperty(entry.getKey(), entry.getValue());
+            }
+        return conn;
+    }
+
+    /**
+     * Read and close the body of a response we do not need so the connection can be kept alive.
+     * Bodies over DISCARD_LIMIT are not read, the connection is closed instead.
      *
-     * @param sb the StringBuilder to use
-     * @param is the InputStream to read
+     * @param conn the connection to release
+     */
+    private static void discard(HttpURLConnection conn) {
+        if (conn.getContentLengthLong() > DISCARD_LIMIT) {
+            conn.disconnect();
+            return;
+        }
+        InputStream is;
+        try {
+            is = conn.getInputStream();
+        } catch (IOException e) {
+            is = conn.getErrorStream();
+        }
+        if (is == null)
+            return;
+        try {
+            byte[] buf = new byte[BUFFER_SIZE];
+            long total = 0;
+            for (int n; (n = is.read(buf)) >= 0; ) {
+                total += n;
+                if (total > DISCARD_LIMIT) {
+                    conn.disconnect();
+                    return;
+                }
+            }
+            is.close();
+        } catch (IOException e) {
+            Logger.log(Level.FINE, e.toString());
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Read the body of a response like readInputStream. The connection is only kept alive when the body was read
+     * to its end : when the matcher decided early or the body was truncated it is closed, else the JDK would
+     * download the rest in background to reuse it.
+     *
+     * @param conn    the connection of the response
+     * @param is      the body stream (input or error stream)
+     * @param sb      the StringBuilder to use
+     * @param matcher the matcher to feed (or null to read everything)
+     * @return the decision of the matcher (MISMATCHED if undecided at the end of the content)
      * @throws IOException exception
      */
-    private static void readInputStream(StringBuilder sb, InputStream is) throws IOException {
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(is))) {
-            for (int c; (c = br.read()) >= 0; )
-                sb.append((char) c);
+    private static Match readBody(HttpURLConnection conn, InputStream is, StringBuilder sb, BodyMatcher matcher)
+            throws IOException {
+        if (is == null)
+            return Match.UNDECIDED;
+        Reader reader = new InputStreamReader(is, getCharset(conn));
+        boolean complete = false;
+        try {
+            Match match = read(sb, reader, matcher);
+            complete = match == null && sb.length() < maxBodySize;
+            return match != null ? match : matcher == null ? Match.UNDECIDED : Match.MISMATCHED;
+        } finally {
+            if (complete)
+                reader.close();
+            else
+                conn.disconnect();
         }
     }
 
+    /**
+     * Read an InputStream into a StringBuilder, stopping at the max body size or when the matcher decides.
+     *
+     * @param sb      the StringBuilder to use
+     * @param is      the InputStream to read
+     * @param charset the charset of the content
+     * @param matcher the matcher to feed (or null to read everything)
+     * @return the decision of the matcher (MISMATCHED if undecided at the end of the content)
+     * @throws IOException exception
+     */
+    static Match readInputStream(StringBuilder sb, InputStream is, Charset charset, BodyMatcher matcher)
+            throws IOException {
+        if (is == null)
+            return Match.UNDECIDED;
+        try (Reader reader = new InputStreamReader(is, charset)) {
+            Match match = read(sb, reader, matcher);
+            return match != null ? match : matcher == null ? Match.UNDECIDED : Match.MISMATCHED;
+        }
+    }
+
+    /**
+     * @return the decision of the matcher, or null if it did not decide before the end or the max body size
+     */
+    private static Match read(StringBuilder sb, Reader reader, BodyMatcher matcher) throws IOException {
+        char[] buf = new char[BUFFER_SIZE];
+        for (int n; (n = reader.read(buf, 0, Math.min(buf.length, maxBodySize - sb.length()))) > 0; ) {
+            sb.append(buf, 0, n);
+            if (matcher != null) {
+                Match match = matcher.match(sb);
+                if (match != Match.UNDECIDED)
+                    return match;
+            }
+        }
+        if (sb.length() >= maxBodySize)
+            Logger.log(Level.FINE, "Response truncated to {0} chars", maxBodySize);
+        return null;
+    }
+
+    private static Charset getCharset(HttpURLConnection conn) {
+        String type = conn.getContentType();
+        if (type != null)
+            for (String param : type.split(";")) {
+                param = param.trim();
+                if (param.toLowerCase().startsWith("charset="))
+                    try {
+                        return Charset.forName(param.substring(8).replace("\"", "").trim());
+                    } catch (IllegalArgumentException e) {
+                        Logger.log(Level.FINE, "Unknown charset : {0}", param);
+                    }
+            }
+        return Charset.defaultCharset();
+    }
+
+    /**
+     * Create a matcher checking if the content (without leading whitespaces) starts with the given prefix.
+     *
+     * @param prefix the expected start of the content
+     * @return the matcher
+     */
+    public static BodyMatcher prefixMatcher(String prefix) {
+        return content -> {
+            int start = 0;
+            while (start < content.length() && Character.isWhitespace(content.charAt(start)))
+                start++;
+            int len = Math.min(prefix.length(), content.length() - start);
+            for (int i = 0; i < len; i++)
+                if (content.charAt(start + i) != prefix.charAt(i))
+                    return Match.MISMATCHED;
+            return len == prefix.length() ? Match.MATCHED : Match.UNDECIDED;
+        };
+    }
+
     /**
      * Write the parameters into a url encoded format.
      *
@@ -184,6 +679,27 @@ public final class HttpUtils {
         return "?" + result.toString();
     }
 
+    /**
+     * The decision of a body matcher.
+     */
+    public enum Match {
+        MATCHED,
+        MISMATCHED,
+        UNDECIDED
+    }
+
+    /**
+     * Decide on a response content while it is being read.
+     */
+    public interface BodyMatcher {
+
+        /**
+         * @param content the content read so far
+         * @return the decision or UNDECIDED if more content is needed
+         */
+        Match match(CharSequence content);
+    }
+
     /**
      * A class containing the simple results of a http request.
      */
@@ -192,13 +708,43 @@ public final class HttpUtils {
         public final int code;
         public final String result;
         public final Map<String, List<String>> headers;
+        public final String url;
+        public final List<String> redirects;
+        public final Match match;
         private JSONObject json = null;
 
         public HttpResult(int code, String result, Map<String, List<String>> headers) {
+            this(code, result, headers, null, new ArrayList<>(0), Match.UNDECIDED);
+        }
+
+        /**
+         * @param code      the response code
+         * @param result    the response content
+         * @param headers   the response headers
+         * @param url       the final url after redirects
+         * @param redirects the urls we were redirected to, in order
+         * @param match     the decision of the body matcher (UNDECIDED if none)
+         */
+        public HttpResult(int code, String result, Map<String, List<String>> headers, String url,
+                          List<String> redirects, Match match) {
             super();
             this.code = code;
             this.result = result;
             this.headers = headers;
+            this.url = url;
+            this.redirects = Collections.unmodifiableList(redirects);
+            this.match = match;
+        }
+
+        /**
+         * @param name the name of the header, case insensitive
+         * @return the first value of the header or null if not present
+         */
+        public String getHeader(String name) {
+            for (Map.Entry<String, List<String>> entry : headers.entrySet())
+                if (name.equalsIgnoreCase(entry.getKey()) && !entry.getValue().isEmpty())
+                    return entry.getValue().get(0);
+            return null;
         }
 
         /**
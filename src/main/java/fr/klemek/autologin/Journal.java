@@ -0,0 +1,243 @@
+package fr.klemek.autologin;
+
+import fr.klemek.logger.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.logging.Level;
+
+/**
+ * An append-only journal of probe and login outcomes, in fixed size binary records.
+ * Records are written through a memory-mapped segment file, a new segment is started when one is full
+ * and the oldest ones are deleted. Pages are flushed by the system, or explicitly on rotation and close.
+ * Each append locks the segment file, so processes running at the same time (overlapping cron runs, a daemon)
+ * share the segment without overwriting each other's records.
+ * <p>
+ * Segment files are named journal-[start time].bin, the first slot is a header (magic, version, record size)
+ * then each record holds : timestamp (long, ms), profile (int, hash of the name), phase (byte), verdict (byte),
+ * http code (short, 0 if none), latency (int, ms) and 4 reserved bytes.
+ *
+ * @author Clement Gouin
+ */
+final class Journal {
+
+    static final int RECORD_SIZE = 24;
+    static final int MAGIC = 0x414C4A31;
+    static final int VERSION = 1;
+    static final String PREFIX = "journal-";
+    static final String SUFFIX = ".bin";
+
+    private static File directory;
+    private static int segmentRecords;
+    private static int keep;
+    private static File segment;
+    private static RandomAccessFile file;
+    private static MappedByteBuffer buffer;
+
+    private Journal() {
+    }
+
+    /**
+     * The step a record comes from.
+     */
+    enum Phase {
+        PROBE, LOGIN, REFRESH
+    }
+
+    /**
+     * Start journaling into a directory, appending to the last segment if it is not full.
+     *
+     * @param dir      the directory of the segment files
+     * @param records  the number of records per segment
+     * @param segments the number of segments to keep
+     */
+    static synchronized void open(File dir, int records, int segments) {
+        close();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Logger.log(Level.WARNING, "Cannot create journal directory " + dir);
+            return;
+        }
+        directory = dir;
+        segmentRecords = Math.max(records, 16);
+        keep = Math.max(segments, 1);
+        File[] files = list(dir);
+        if (files.length > 0 && map(files[files.length - 1]))
+            return;
+        rotate();
+    }
+
+    /**
+     * Append a record, does nothing if the journal is not open.
+     *
+     * @param profile the profile checked
+     * @param phase   the step
+     * @param latency the duration of the step in ms
+     * @param code    the http code (0 if none)
+     * @param success the verdict
+     */
+    static synchronized void append(Profile profile, Phase phase, long latency, int code, boolean success) {
+        while (buffer != null) {
+            FileLock lock;
+            try {
+                lock = file.getChannel().lock();
+            } catch (IOException e) {
+                Logger.log(Level.WARNING, "Cannot lock journal segment : " + e);
+                return;
+            }
+            try {
+                // another process may have appended since our last record
+                int records = count(buffer);
+                if ((records + 2) * RECORD_SIZE > buffer.capacity()) {
+                    if (!next())
+                        return;
+                    continue;
+                }
+                buffer.position((records + 1) * RECORD_SIZE);
+                buffer.putLong(System.currentTimeMillis());
+                buffer.putInt(profile.toString().hashCode());
+                buffer.put((byte) phase.ordinal());
+                buffer.put((byte) (success ? 1 : 0));
+                buffer.putShort((short) code);
+                buffer.putInt((int) Math.min(latency, Integer.MAX_VALUE));
+                buffer.putInt(0);
+                return;
+            } finally {
+                release(lock);
+            }
+        }
+    }
+
+    /**
+     * Release the lock of a segment, unless it was already released by closing the segment.
+     */
+    private static void release(FileLock lock) {
+        if (!lock.isValid())
+            return;
+        try {
+            lock.release();
+        } catch (IOException e) {
+            Logger.log(Level.FINE, "Cannot unlock journal : {0}", e);
+        }
+    }
+
+    /**
+     * Flush and close the current segment.
+     */
+    static synchronized void close() {
+        if (buffer != null)
+            buffer.force();
+        buffer = null;
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                Logger.log(Level.FINE, "Cannot close journal : {0}", e);
+            }
+            file = null;
+        }
+    }
+
+    /**
+     * @param dir the journal directory
+     * @return the segment files, oldest first
+     */
+    static File[] list(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (files == null)
+            return new File[0];
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * @param segment a segment file
+     * @return the time of its first possible record
+     */
+    static long startTime(File segment) {
+        String name = segment.getName();
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Count the records of a mapped segment, by binary search of the first empty slot.
+     *
+     * @param segment the mapped segment, positioned anywhere
+     * @return the number of records
+     */
+    static int count(ByteBuffer segment) {
+        int low = 0;
+        int high = segment.capacity() / RECORD_SIZE - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (segment.getLong((mid + 1) * RECORD_SIZE) != 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Move on from the full current segment, called with it locked so two processes do not both start a new one :
+     * to the segment another process started meanwhile if any, else to a new one.
+     */
+    private static boolean next() {
+        File[] files = list(directory);
+        if (files.length > 0 && !files[files.length - 1].equals(segment)) {
+            close();
+            return map(files[files.length - 1]);
+        }
+        return rotate();
+    }
+
+    /**
+     * Start a new segment, the current one (if any) is closed once the new one is ready.
+     */
+    private static boolean rotate() {
+        File next = new File(directory, String.format("%s%013d%s", PREFIX, System.currentTimeMillis(), SUFFIX));
+        try (RandomAccessFile raf = new RandomAccessFile(next, "rw")) {
+            raf.setLength((long) (segmentRecords + 1) * RECORD_SIZE);
+            raf.writeInt(MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeInt(RECORD_SIZE);
+        } catch (IOException e) {
+            Logger.log(Level.WARNING, "Cannot create journal segment : " + e);
+            close();
+            return false;
+        }
+        close();
+        File[] files = list(directory);
+        for (int i = 0; i < files.length - keep; i++)
+            if (!files[i].delete())
+                Logger.log(Level.WARNING, "Cannot delete journal segment " + files[i]);
+        return map(next);
+    }
+
+    private static boolean map(File next) {
+        try {
+            segment = next;
+            file = new RandomAccessFile(next, "rw");
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+            if (buffer.capacity() < 2 * RECORD_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(8) != RECORD_SIZE) {
+                Logger.log(Level.WARNING, "Invalid journal segment " + next);
+                close();
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            Logger.log(Level.WARNING, "Cannot open journal segment : " + e);
+            close();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package fr.klemek.autologin;
+
+import fr.klemek.logger.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Read the journal over a time window and report, for each profile : uptime, outages and latency percentiles.
+ * Segments are mapped read-only one at a time and records are folded into counters and histograms,
+ * so the journal is never loaded in the heap. Options are given as key=value arguments after --stats :
+ * since (window like 30m, 24h or 7d, default 24h), profile (only report this profile)
+ * and max_gap (seconds between two probes after which the time is not counted, default 600).
+ *
+ * @author Clement Gouin
+ */
+final class JournalStats {
+
+    private JournalStats() {
+    }
+
+    /**
+     * Compute and log the statistics.
+     *
+     * @param dir  the journal directory
+     * @param args the key=value options
+     * @return true if the journal could be read
+     */
+    static boolean run(File dir, List<String> args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] parts = arg.split("=", 2);
+            if (parts.length == 2)
+                options.put(parts[0], parts[1]);
+            else
+                Logger.log(Level.WARNING, "Ignored stats option '" + arg + "'");
+        }
+        long window;
+        long maxGap;
+        try {
+            window = parseDuration(options.containsKey("since") ? options.get("since") : "24h");
+            maxGap = parseDuration(options.containsKey("max_gap") ? options.get("max_gap") : "600");
+        } catch (NumberFormatException e) {
+            Logger.log(Level.SEVERE, "Invalid duration : " + e.getMessage());
+            return false;
+        }
+        long since = System.currentTimeMillis() - window;
+
+        Map<Integer, String> names = new HashMap<>();
+        for (Profile profile : Profile.loadAll())
+            names.put(profile.toString().hashCode(), profile.toString());
+        Integer only = options.containsKey("profile") ? options.get("profile").hashCode() : null;
+
+        File[] segments = Journal.list(dir);
+        if (segments.length == 0) {
+            Logger.log(Level.SEVERE, "No journal in " + dir);
+            return false;
+        }
+        Map<Integer, Summary> summaries = new LinkedHashMap<>();
+        for (int i = 0; i < segments.length; i++) {
+            if (i + 1 < segments.length && Journal.startTime(segments[i + 1]) < since)
+                continue;
+            try (RandomAccessFile raf = new RandomAccessFile(segments[i], "r")) {
+                MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                if (buffer.capacity() < 2 * Journal.RECORD_SIZE || buffer.getInt(0) != Journal.MAGIC) {
+                    Logger.log(Level.WARNING, "Skipped invalid journal segment " + segments[i]);
+                    continue;
+                }
+                int records = Journal.count(buffer);
+                for (int r = 1; r <= records; r++) {
+                    int offset = r * Journal.RECORD_SIZE;
+                    long time = buffer.getLong(offset);
+                    int profile = buffer.getInt(offset + 8);
+                    if (time < since || (only != null && profile != only))
+                        continue;
+                    Summary summary = summaries.get(profile);
+                    if (summary == null) {
+                        summary = new Summary(maxGap);
+                        summaries.put(profile, summary);
+                    }
+                    summary.add(time, buffer.get(offset + 12), buffer.get(offset + 13) != 0,
+                            buffer.getShort(offset + 14), buffer.getInt(offset + 16));
+                }
+            } catch (IOException e) {
+                Logger.log(Level.WARNING, "Cannot read journal segment " + segments[i] + " : " + e);
+            }
+        }
+
+        Logger.log("Journal stats since " + new Date(since));
+        if (summaries.isEmpty())
+            Logger.log("No records");
+        for (Map.Entry<Integer, Summary> entry : summaries.entrySet()) {
+            String name = names.get(entry.getKey());
+            entry.getValue().log(name == null ? String.format("#%08x", entry.getKey()) : name,
+                    System.currentTimeMillis());
+        }
+        return true;
+    }
+
+    /**
+     * @param text a number of seconds, or a number followed by s, m, h or d
+     * @return the duration in ms
+     */
+    static long parseDuration(String text) {
+        String value = text.trim();
+        TimeUnit unit = TimeUnit.SECONDS;
+        switch (value.isEmpty() ? ' ' : value.charAt(value.length() - 1)) {
+            case 'd':
+                unit = TimeUnit.DAYS;
+                break;
+            case 'h':
+                unit = TimeUnit.HOURS;
+                break;
+            case 'm':
+                unit = TimeUnit.MINUTES;
+                break;
+            case 's':
+                break;
+            default:
+                return TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+        }
+        return unit.toMillis(Long.parseLong(value.substring(0, value.length() - 1)));
+    }
+
+    private static String formatDuration(long ms) {
+        if (ms < 1000)
+            return ms + " ms";
+        if (ms < 60000)
+            return String.format("%.1f s", ms / 1000.0);
+        long s = ms / 1000;
+        if (s < 3600)
+            return String.format("%dm%02ds", s / 60, s % 60);
+        return String.format("%dh%02dm", s / 3600, (s % 3600) / 60);
+    }
+
+    /**
+     * Running statistics of one profile, records must come in time order.
+     */
+    private static class Summary {
+
+        private final long maxGap;
+        private final Map<Journal.Phase, Histogram> latencies = new LinkedHashMap<>();
+        private final Map<Journal.Phase, int[]> verdicts = new LinkedHashMap<>();
+        private final Map<Integer, Integer> codes = new HashMap<>();
+        private long lastProbe;
+        private boolean lastUp;
+        private long up;
+        private long down;
+        private long outageStart = -1;
+        private int outages;
+        private long outageTotal;
+        private long outageMax;
+
+        Summary(long maxGap) {
+            this.maxGap = maxGap;
+        }
+
+        void add(long time, int phaseIndex, boolean success, int code, int latency) {
+            if (phaseIndex < 0 || phaseIndex >= Journal.Phase.values().length)
+                return;
+            Journal.Phase phase = Journal.Phase.values()[phaseIndex];
+            Histogram histogram = latencies.get(phase);
+            if (histogram == null) {
+                histogram = new Histogram();
+                latencies.put(phase, histogram);
+                verdicts.put(phase, new int[2]);
+            }
+            histogram.add(latency);
+            verdicts.get(phase)[success ? 1 : 0]++;
+            if (code != 0)
+                codes.merge(code, 1, Integer::sum);
+            if (phase != Journal.Phase.PROBE)
+                return;
+
+            if (lastProbe > 0 && time - lastProbe <= maxGap) {
+                if (lastUp)
+                    up += time - lastProbe;
+                else
+                    down += time - lastProbe;
+            }
+            if (!success && outageStart < 0)
+                outageStart = time;
+            else if (success && outageStart >= 0)
+                endOutage(time);
+            lastProbe = time;
+            lastUp = success;
+        }
+
+        void log(String name, long now) {
+            long ongoing = outageStart >= 0 ? now - outageStart : 0;
+            if (outageStart >= 0)
+                endOutage(now);
+            StringBuilder sb = new StringBuilder(name).append(" :");
+            if (up + down > 0)
+                sb.append(String.format(" uptime %.3f %%,", 100.0 * up / (up + down)));
+            sb.append(' ').append(outages).append(" outages");
+            if (outages > 0)
+                sb.append(" (total ").append(formatDuration(outageTotal))
+                        .append(", longest ").append(formatDuration(outageMax)).append(')');
+            if (ongoing > 0)
+                sb.append(", disconnected for ").append(formatDuration(ongoing));
+            Logger.log(sb.toString());
+            for (Map.Entry<Journal.Phase, Histogram> entry : latencies.entrySet()) {
+                Histogram h = entry.getValue();
+                int[] count = verdicts.get(entry.getKey());
+                Logger.log(String.format("  %-7s %6d ok %6d failed   p50 %s  p95 %s  p99 %s  max %s",
+                        entry.getKey().name().toLowerCase(), count[1], count[0],
+                        formatDuration(h.percentile(50)), formatDuration(h.percentile(95)),
+                        formatDuration(h.percentile(99)), formatDuration(h.max)));
+            }
+            if (!codes.isEmpty()) {
+                StringBuilder line = new StringBuilder("  http codes");
+                for (Map.Entry<Integer, Integer> code : codes.entrySet())
+                    line.append(' ').append(code.getKey()).append(" x").append(code.getValue());
+                Logger.log(line.toString());
+            }
+        }
+
+        private void endOutage(long time) {
+            long duration = time - outageStart;
+            outages++;
+            outageTotal += duration;
+            outageMax = Math.max(outageMax, duration);
+            outageStart = -1;
+        }
+    }
+
+    /**
+     * Latency histogram of fixed size : exact up to 256 ms, then 64 buckets per power of two (under 2 % error).
+     */
+    static final class Histogram {
+
+        private static final int LINEAR = 256;
+        private static final int SUB_BUCKETS = 64;
+
+        private final long[] counts = new long[LINEAR + (32 - 8) * SUB_BUCKETS];
+        private long total;
+        private long max;
+
+        void add(int value) {
+            int v = Math.max(value, 0);
+            counts[index(v)]++;
+            total++;
+            max = Math.max(max, v);
+        }
+
+        /**
+         * @param percent the percentile wanted
+         * @return the lower bound of the bucket holding it
+         */
+        long percentile(double percent) {
+            if (total == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(percent / 100.0 * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return Math.min(lowerBound(i), max);
+            }
+            return max;
+        }
+
+        private static int index(int value) {
+            if (value < LINEAR)
+                return value;
+            int power = 31 - Integer.numberOfLeadingZeros(value);
+            return LINEAR + (power - 8) * SUB_BUCKETS + ((value >>> (power - 6)) & (SUB_BUCKETS - 1));
+        }
+
+        private static long lowerBound(int index) {
+            if (index < LINEAR)
+                return index;
+            int power = (index - LINEAR) / SUB_BUCKETS + 8;
+            int sub = (index - LINEAR) % SUB_BUCKETS;
+            return (1L << power) + ((long) sub << (power - 6));
+        }
+    }
+}
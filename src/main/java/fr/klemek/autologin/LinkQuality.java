@@ -0,0 +1,138 @@
+package fr.klemek.autologin;
+
+import fr.klemek.logger.Logger;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Measure the quality of a link still connected but maybe throttled by the portal :
+ * connect times to quality_url (a few at each check) and its download throughput (at most every quality_interval).
+ * Measures are kept in a rolling window, the link is degraded when the p95 connect time goes above quality_max_rtt
+ * or when the best of the last downloads is under quality_min_throughput.
+ *
+ * @author Clement Gouin
+ */
+final class LinkQuality {
+
+    /**
+     * The number of downloads the throughput is judged on.
+     */
+    private static final int THROUGHPUT_WINDOW = 3;
+
+    /**
+     * What to do about the link.
+     */
+    enum Verdict {
+        /**
+         * The link is fine, or not enough is known yet.
+         */
+        GOOD,
+        /**
+         * The link is degraded, refreshing the session may be enough.
+         */
+        REFRESH,
+        /**
+         * The link is still degraded after a refresh, a new login is needed.
+         */
+        LOGIN
+    }
+
+    private final Deque<Long> rtts = new ArrayDeque<>();
+    private final Deque<Long> throughputs = new ArrayDeque<>();
+    private long lastDownload;
+    private boolean refreshed;
+
+    /**
+     * Take new measures and judge the link on the window.
+     * After a degraded verdict the window is cleared, so the next one is only given on new measures.
+     *
+     * @param profile the profile holding the quality settings
+     * @return the verdict
+     */
+    synchronized Verdict check(Profile profile) {
+        String url = profile.getString("quality_url");
+        int maxRtt = profile.getInt("quality_max_rtt", 0);
+        int minThroughput = profile.getInt("quality_min_throughput", 0);
+        if (url == null || (maxRtt <= 0 && minThroughput <= 0))
+            return Verdict.GOOD;
+
+        int window = Math.max(profile.getInt("quality_window", 20), 1);
+        if (maxRtt > 0)
+            measureRtt(url, profile.getInt("quality_samples", 5), profile.getInt("test_timeout", 10000), window);
+        if (minThroughput > 0
+                && System.currentTimeMillis() - lastDownload >= profile.getInt("quality_interval", 60) * 1000L)
+            measureThroughput(url, profile.getInt("quality_size", 256 * 1024));
+
+        boolean degraded = false;
+        boolean known = false;
+        if (maxRtt > 0 && rtts.size() >= (window + 1) / 2) {
+            known = true;
+            long p95 = percentile(new ArrayList<>(rtts), 95);
+            Logger.log(Level.FINE, "Link p95 connect time {0} ms", p95);
+            if (p95 > maxRtt) {
+                Logger.log(Level.WARNING, "Link p95 connect time is " + p95 + " ms (max " + maxRtt + " ms)");
+                degraded = true;
+            }
+        }
+        if (minThroughput > 0 && throughputs.size() >= THROUGHPUT_WINDOW) {
+            known = true;
+            long best = Collections.max(throughputs);
+            Logger.log(Level.FINE, "Link throughput {0} kB/s", best);
+            if (best < minThroughput) {
+                Logger.log(Level.WARNING, "Link throughput is " + best + " kB/s (min " + minThroughput + " kB/s)");
+                degraded = true;
+            }
+        }
+        if (!degraded) {
+            if (known)
+                refreshed = false;
+            return Verdict.GOOD;
+        }
+        Metrics.increment("quality_degraded");
+        rtts.clear();
+        throughputs.clear();
+        if (refreshed) {
+            refreshed = false;
+            return Verdict.LOGIN;
+        }
+        refreshed = true;
+        return Verdict.REFRESH;
+    }
+
+    private void measureRtt(String url, int samples, int timeout, int window) {
+        URI uri = URI.create(url);
+        int port = uri.getPort() != -1 ? uri.getPort() : "https".equals(uri.getScheme()) ? 443 : 80;
+        List<TcpProber.Target> targets = TcpProber.targets(Collections.singletonList(url),
+                Collections.nCopies(Math.max(samples, 1), port));
+        TcpProber.connect(targets, timeout, false);
+        for (TcpProber.Target target : targets) {
+            rtts.addLast(target.isConnected() ? target.latency : timeout);
+            if (rtts.size() > window)
+                rtts.removeFirst();
+        }
+    }
+
+    private void measureThroughput(String url, int size) {
+        lastDownload = System.currentTimeMillis();
+        long start = System.nanoTime();
+        long bytes = HttpUtils.executeDownload(url, size);
+        long ms = Math.max(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), 1);
+        Metrics.time("quality_download", start);
+        throughputs.addLast(bytes <= 0 ? 0 : bytes * 1000 / 1024 / ms);
+        if (throughputs.size() > THROUGHPUT_WINDOW)
+            throughputs.removeFirst();
+    }
+
+    private static long percentile(List<Long> values, int percent) {
+        Collections.sort(values);
+        int index = (int) Math.ceil(percent / 100.0 * values.size()) - 1;
+        return values.get(Math.max(0, Math.min(index, values.size() - 1)));
+    }
+}
@@ -0,0 +1,23 @@
+package fr.klemek.autologin;
+
+/**
+ * A way to fill and submit the login form of a portal.
+ *
+ * @author Clement Gouin
+ */
+interface LoginEngine {
+
+    /**
+     * @return the name of the engine, as given in login_engine
+     */
+    String name();
+
+    /**
+     * Log into the portal, its address is known to be reachable.
+     *
+     * @param profile the profile to log in, with its parameters loaded
+     * @return SUCCESS if connected at the end, FAILED if the portal refused the credentials (no other engine
+     * will do better), UNRESOLVED if this engine could not tell
+     */
+    FormLogin.Result login(Profile profile);
+}
@@ -0,0 +1,225 @@
+package fr.klemek.autologin;
+
+import fr.klemek.logger.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Choose the login engine of a portal. In auto mode the engines are tried in order of their measured speed
+ * on this portal : the ones that succeeded first (fastest first), then the untried ones, then the ones that
+ * failed lately. The measures are kept in a file between runs.
+ *
+ * @author Clement Gouin
+ */
+final class LoginEngines {
+
+    /**
+     * The engines in their default order, expected fastest first.
+     */
+    private static final List<LoginEngine> ENGINES = new ArrayList<>();
+
+    /**
+     * The time a failed engine is tried after the others.
+     */
+    private static final long FAILURE_MEMORY = TimeUnit.DAYS.toMillis(1);
+
+    private static final Map<String, Map<String, Score>> SCORES = new HashMap<>();
+    private static File scoreFile;
+    private static boolean loaded;
+
+    static {
+        ENGINES.add(new HttpLoginEngine());
+        if (BrowserEngine.HTMLUNIT.isAvailable())
+            ENGINES.add(BrowserEngine.HTMLUNIT);
+        ENGINES.add(BrowserEngine.PHANTOMJS);
+    }
+
+    private LoginEngines() {
+    }
+
+    /**
+     * The measures of an engine on a portal.
+     */
+    private static final class Score {
+
+        /**
+         * Moving average of the successful logins in ms, -1 if none.
+         */
+        long average = -1;
+        int failures;
+        long lastFailure;
+
+        boolean failedLately() {
+            return failures > 0 && System.currentTimeMillis() - lastFailure < FAILURE_MEMORY;
+        }
+    }
+
+    /**
+     * Set the file holding the measures, it is read on first use.
+     *
+     * @param file the file holding them
+     */
+    static synchronized void load(File file) {
+        scoreFile = file;
+        loaded = false;
+        SCORES.clear();
+    }
+
+    /**
+     * Log in with the engine given in login_engine, or with the engines listed in login_engines in auto mode
+     * until one succeeds. The next engine is only tried when the previous one could not tell the outcome,
+     * not when the portal refused the credentials.
+     *
+     * @param profile the profile to log in, with its parameters loaded
+     * @return true if connected at the end
+     */
+    static boolean login(Profile profile) {
+        String mode = profile.getString("login_engine") == null ? "auto" : profile.getString("login_engine");
+        List<LoginEngine> engines = "auto".equals(mode) ? order(profile) : find(mode);
+        if (engines.isEmpty()) {
+            Logger.log(Level.SEVERE, "Unknown login engine '" + mode + "'");
+            return false;
+        }
+        for (int i = 0; i < engines.size(); i++) {
+            LoginEngine engine = engines.get(i);
+            Logger.log("Logging in with " + engine.name() + "...");
+            long start = System.nanoTime();
+            FormLogin.Result result = engine.login(profile);
+            long ms = Metrics.time("engine_" + engine.name(), start);
+            if (result == FormLogin.Result.FAILED) {
+                Logger.log(Level.SEVERE, "Login refused by the portal");
+                Metrics.increment("login_refused");
+                return false;
+            }
+            record(profile, engine, result == FormLogin.Result.SUCCESS, ms);
+            if (result == FormLogin.Result.SUCCESS)
+                return true;
+            if (i + 1 < engines.size())
+                Logger.log(Level.WARNING, "Login with " + engine.name() + " failed, falling back to "
+                        + engines.get(i + 1).name());
+        }
+        return false;
+    }
+
+    /**
+     * @param profile the profile to log in
+     * @return the engines to try in auto mode, in order
+     */
+    static synchronized List<LoginEngine> order(Profile profile) {
+        List<String> names = profile.getList("login_engines");
+        List<LoginEngine> engines = new ArrayList<>();
+        if (names.isEmpty())
+            engines.addAll(ENGINES);
+        else
+            for (String name : names) {
+                List<LoginEngine> found = find(name);
+                if (found.isEmpty())
+                    Logger.log(Level.WARNING, "Unknown login engine '" + name + "'");
+                else if (!engines.contains(found.get(0)))
+                    engines.add(found.get(0));
+            }
+
+        ensureLoaded();
+        Map<String, Score> scores = SCORES.get(portal(profile));
+        if (scores == null)
+            return engines;
+        List<LoginEngine> configured = new ArrayList<>(engines);
+        engines.sort(Comparator.<LoginEngine>comparingInt(engine -> {
+            Score score = scores.get(engine.name());
+            if (score == null)
+                return 1;
+            return score.failedLately() ? 2 : score.average >= 0 ? 0 : 1;
+        }).thenComparingLong(engine -> {
+            Score score = scores.get(engine.name());
+            return score == null || score.average < 0 ? Long.MAX_VALUE : score.average;
+        }).thenComparingInt(configured::indexOf));
+        return engines;
+    }
+
+    private static List<LoginEngine> find(String name) {
+        List<LoginEngine> found = new ArrayList<>(1);
+        for (LoginEngine engine : ENGINES)
+            if (engine.name().equals(name))
+                found.add(engine);
+        return found;
+    }
+
+    private static String portal(Profile profile) {
+        return profile.params != null && profile.params.get("address") != null
+                ? profile.params.get("address") : profile.toString();
+    }
+
+    private static synchronized void record(Profile profile, LoginEngine engine, boolean connected, long ms) {
+        ensureLoaded();
+        Score score = SCORES.computeIfAbsent(portal(profile), k -> new HashMap<>())
+                .computeIfAbsent(engine.name(), k -> new Score());
+        if (connected) {
+            score.average = score.average < 0 ? ms : (3 * score.average + ms) / 4;
+            score.failures = 0;
+        } else {
+            score.failures++;
+            score.lastFailure = System.currentTimeMillis();
+        }
+        save();
+    }
+
+    private static void ensureLoaded() {
+        if (loaded || scoreFile == null)
+            return;
+        loaded = true;
+        File file = scoreFile;
+        if (!file.isFile())
+            return;
+        try {
+            JSONObject json = new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            for (String portal : json.keySet()) {
+                JSONObject engines = json.getJSONObject(portal);
+                Map<String, Score> scores = new HashMap<>();
+                for (String name : engines.keySet()) {
+                    JSONObject item = engines.getJSONObject(name);
+                    Score score = new Score();
+                    score.average = item.optLong("average", -1);
+                    score.failures = item.optInt("failures", 0);
+                    score.lastFailure = item.optLong("last_failure", 0);
+                    scores.put(name, score);
+                }
+                SCORES.put(portal, scores);
+            }
+        } catch (IOException | JSONException e) {
+            Logger.log(Level.WARNING, "Cannot read login engine measures : " + e);
+        }
+    }
+
+    private static void save() {
+        if (scoreFile == null)
+            return;
+        JSONObject json = new JSONObject();
+        for (Map.Entry<String, Map<String, Score>> portal : SCORES.entrySet()) {
+            JSONObject engines = new JSONObject();
+            for (Map.Entry<String, Score> entry : portal.getValue().entrySet())
+                engines.put(entry.getKey(), new JSONObject()
+                        .put("average", entry.getValue().average)
+                        .put("failures", entry.getValue().failures)
+                        .put("last_failure", entry.getValue().lastFailure));
+            json.put(portal.getKey(), engines);
+        }
+        try {
+            Utils.writePrivate(scoreFile, json.toString(2).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Logger.log(Level.WARNING, "Cannot write login engine measures : " + e);
+        }
+    }
+}
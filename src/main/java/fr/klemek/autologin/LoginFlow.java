@@ -0,0 +1,420 @@
+package fr.klemek.autologin;
+
+import fr.klemek.logger.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.CookieManager;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The http requests sent by the browser during a login, recorded once and replayed with HttpUtils only.
+ * Credentials and tokens found in the login page are replaced by {{variables}} filled on each replay,
+ * tokens being extracted again from a fresh login page. Cookies are left to the cookie store of the profile.
+ *
+ * @author Clement Gouin
+ */
+final class LoginFlow {
+
+    private static final String FORM_TYPE = "application/x-www-form-urlencoded";
+    private static final Pattern VARIABLE_PATTERN = Pattern.compile("\\{\\{(\\w+)}}");
+    private static final int CONTEXT_SIZE = 24;
+
+    private static final Map<String, LoginFlow> FLOWS = new HashMap<>();
+    private static File flowFile;
+    private static boolean loaded;
+
+    /**
+     * A recorded request, url and body may hold variables.
+     */
+    static final class Step {
+
+        final String method;
+        final String url;
+        final String contentType;
+        final String body;
+
+        Step(String method, String url, String contentType, String body) {
+            this.method = method.toUpperCase();
+            this.url = url;
+            this.contentType = contentType;
+            this.body = body;
+        }
+
+        boolean isForm() {
+            return contentType != null && contentType.toLowerCase().startsWith(FORM_TYPE);
+        }
+
+        boolean isJson() {
+            if (body == null || isForm())
+                return false;
+            String trimmed = body.trim();
+            return trimmed.startsWith("{") || trimmed.startsWith("[");
+        }
+    }
+
+    /**
+     * Where to find the value of a token in the login page : the value of a named form field,
+     * or the text between a prefix and a suffix.
+     */
+    static final class Variable {
+
+        final String field;
+        final String prefix;
+        final String suffix;
+
+        Variable(String field, String prefix, String suffix) {
+            this.field = field;
+            this.prefix = prefix;
+            this.suffix = suffix;
+        }
+
+        String extract(String html) {
+            if (field != null)
+                return FormLogin.findValue(html, field);
+            Matcher m = Pattern.compile(Pattern.quote(prefix) + "(.*?)" + Pattern.quote(suffix), Pattern.DOTALL)
+                    .matcher(html);
+            return m.find() ? m.group(1) : null;
+        }
+    }
+
+    private final List<Step> steps;
+    private final Map<String, Variable> variables;
+
+    private LoginFlow(List<Step> steps, Map<String, Variable> variables) {
+        this.steps = steps;
+        this.variables = variables;
+    }
+
+    /**
+     * Set the file holding the recorded flows, it is read on first use.
+     *
+     * @param file the file holding them
+     */
+    static synchronized void load(File file) {
+        flowFile = file;
+        loaded = false;
+        FLOWS.clear();
+    }
+
+    private static void ensureLoaded() {
+        if (loaded || flowFile == null)
+            return;
+        loaded = true;
+        File file = flowFile;
+        if (!file.isFile())
+            return;
+        try {
+            JSONObject json = new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            for (String name : json.keySet())
+                FLOWS.put(name, fromJSON(json.getJSONObject(name)));
+            Logger.log("Loaded " + FLOWS.size() + " recorded login flow(s) from " + file);
+        } catch (IOException | JSONException e) {
+            Logger.log(Level.WARNING, "Cannot read recorded flows : " + e);
+        }
+    }
+
+    /**
+     * @param profile the profile
+     * @return the recorded flow of the profile or null if there is none
+     */
+    static synchronized LoginFlow get(Profile profile) {
+        ensureLoaded();
+        return FLOWS.get(profile.toString());
+    }
+
+    /**
+     * Forget the flow of a profile, it will be recorded again on the next browser login.
+     *
+     * @param profile the profile
+     */
+    static synchronized void remove(Profile profile) {
+        ensureLoaded();
+        if (FLOWS.remove(profile.toString()) != null)
+            save();
+    }
+
+    /**
+     * Turn the requests sent by the browser into a flow and store it for the profile.
+     *
+     * @param profile    the profile logged in
+     * @param pageSource the source of the login page as loaded by the browser, to locate tokens
+     * @param requests   the requests sent by the browser, in order
+     */
+    static synchronized void record(Profile profile, String pageSource, List<Step> requests) {
+        ensureLoaded();
+        Map<String, String> params = profile.params;
+        Map<String, String> values = new LinkedHashMap<>();
+        values.put(params.get("login"), "login");
+        values.put(params.get("pass"), "pass");
+        Map<String, Variable> variables = new LinkedHashMap<>();
+
+        List<Step> steps = new ArrayList<>();
+        for (Step request : requests) {
+            int query = request.url.indexOf('?');
+            String url = query < 0 ? request.url : request.url.substring(0, query + 1)
+                    + templateForm(request.url.substring(query + 1), values, variables, pageSource);
+            String body = request.body;
+            if (body != null) {
+                if (request.isForm())
+                    body = templateForm(body, values, variables, pageSource);
+                else if (request.isJson())
+                    body = templateJson(body, values, variables, pageSource);
+            }
+            steps.add(new Step(request.method, url, request.contentType, body));
+        }
+
+        if (!hasVariable(steps, "pass")) {
+            Logger.log(Level.WARNING, "No request carrying the credentials was recorded");
+            return;
+        }
+        FLOWS.put(profile.toString(), new LoginFlow(steps, variables));
+        Logger.log("Recorded login flow of " + steps.size() + " request(s) with " + variables.size() + " token(s)");
+        save();
+    }
+
+    private static boolean hasVariable(List<Step> steps, String name) {
+        for (Step step : steps)
+            if (step.url.contains("{{" + name + "}}") || (step.body != null && step.body.contains("{{" + name + "}}")))
+                return true;
+        return false;
+    }
+
+    private static String templateForm(String encoded, Map<String, String> values, Map<String, Variable> variables,
+                                       String pageSource) {
+        StringBuilder sb = new StringBuilder();
+        for (String pair : encoded.split("&")) {
+            if (sb.length() > 0)
+                sb.append('&');
+            String[] parts = pair.split("=", 2);
+            if (parts.length < 2) {
+                sb.append(pair);
+                continue;
+            }
+            String value = decode(parts[1]);
+            String name = variable(value, decode(parts[0]), values, variables, pageSource);
+            sb.append(parts[0]).append('=').append(name == null ? parts[1] : "{{" + name + "}}");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Replace the string values of a JSON body that are exactly a credential or a token, keys and other
+     * values are left untouched. A body that cannot be parsed is kept as is.
+     */
+    static String templateJson(String body, Map<String, String> values, Map<String, Variable> variables,
+                               String pageSource) {
+        try {
+            Object json = body.trim().startsWith("[") ? new JSONArray(body) : new JSONObject(body);
+            return templateJson(json, null, values, variables, pageSource).toString();
+        } catch (JSONException e) {
+            Logger.log(Level.WARNING, "Cannot parse recorded body : " + e);
+            return body;
+        }
+    }
+
+    private static Object templateJson(Object json, String field, Map<String, String> values,
+                                       Map<String, Variable> variables, String pageSource) {
+        if (json instanceof JSONObject) {
+            JSONObject object = (JSONObject) json;
+            for (String key : new ArrayList<>(object.keySet()))
+                object.put(key, templateJson(object.get(key), key, values, variables, pageSource));
+        } else if (json instanceof JSONArray) {
+            JSONArray array = (JSONArray) json;
+            for (int i = 0; i < array.length(); i++)
+                array.put(i, templateJson(array.get(i), field, values, variables, pageSource));
+        } else if (json instanceof String) {
+            String name = variable((String) json, field, values, variables, pageSource);
+            if (name != null)
+                return "{{" + name + "}}";
+        }
+        return json;
+    }
+
+    /**
+     * Find the variable holding a value, creating a token variable if the value comes from the login page.
+     *
+     * @return the variable name or null if the value is a constant
+     */
+    static String variable(String value, String field, Map<String, String> values,
+                           Map<String, Variable> variables, String pageSource) {
+        if (values.containsKey(value))
+            return values.get(value);
+        if (value.length() < 6)
+            return null;
+        Variable variable = null;
+        if (field != null && value.equals(FormLogin.findValue(pageSource, field))) {
+            variable = new Variable(field, null, null);
+        } else {
+            int index = pageSource.indexOf(value);
+            if (index >= 0 && index + value.length() < pageSource.length()) {
+                String prefix = pageSource.substring(Math.max(0, index - CONTEXT_SIZE), index);
+                String suffix = pageSource.substring(index + value.length(), index + value.length() + 1);
+                variable = new Variable(null, prefix, suffix);
+                if (!value.equals(variable.extract(pageSource)))
+                    variable = null;
+            }
+        }
+        if (variable == null)
+            return null;
+        String name = "token" + (variables.size() + 1);
+        variables.put(name, variable);
+        values.put(value, name);
+        return name;
+    }
+
+    /**
+     * Send the recorded requests again with fresh credentials and tokens.
+     * The replay fails if a token cannot be found, a request is refused or the login page comes back.
+     *
+     * @param params     the login parameters (see App.loadParams)
+     * @param cookies    the cookies of the profile
+     * @param onResponse given the response to each replayed request (can be null)
+     * @return the response to the last request, or null if the replay failed
+     */
+    HttpUtils.HttpResult replay(Map<String, String> params, CookieManager cookies,
+                                Consumer<HttpUtils.HttpResult> onResponse) {
+        Logger.log("Replaying recorded login flow on " + params.get("address") + " ...");
+        HttpUtils.HttpResult page = HttpUtils.executeRequest("GET", params.get("address"), cookies);
+        if (page.code != 200 || page.result == null) {
+            Logger.log(Level.WARNING, "Cannot fetch login page (response {0})", page.code);
+            return null;
+        }
+
+        Map<String, String> values = new HashMap<>();
+        values.put("login", params.get("login"));
+        values.put("pass", params.get("pass"));
+        for (Map.Entry<String, Variable> entry : variables.entrySet()) {
+            String value = entry.getValue().extract(page.result);
+            if (value == null) {
+                Logger.log(Level.WARNING, "Cannot find {0} in login page", entry.getKey());
+                return null;
+            }
+            values.put(entry.getKey(), value);
+        }
+
+        HttpUtils.HttpResult hr = page;
+        for (Step step : steps) {
+            Map<String, String> headers = new HashMap<>();
+            headers.put("Referer", hr.url == null ? params.get("address") : hr.url);
+            String url = fill(step.url, values, LoginFlow::encode);
+            String body = step.body == null ? null : fill(step.body, values,
+                    step.isForm() ? LoginFlow::encode : step.isJson() ? LoginFlow::escape : UnaryOperator.identity());
+            Logger.log("Sending " + step.method + " " + url.replaceAll("\\?.*", "") + " ...");
+            hr = HttpUtils.executeRawRequest(step.method, url, headers, body, step.contentType, cookies);
+            if (onResponse != null)
+                onResponse.accept(hr);
+            if (hr.code < 200 || hr.code >= 400) {
+                Logger.log(Level.WARNING, "Replayed request refused with response {0}", hr.code);
+                return null;
+            }
+        }
+        if (hr.result != null && FormLogin.findForm(hr.result, params.get("pass_field_id")) != null) {
+            Logger.log(Level.WARNING, "Login page returned again, replay refused");
+            return null;
+        }
+        Logger.log("Recorded flow replayed successfully");
+        return hr;
+    }
+
+    private static String fill(String template, Map<String, String> values, UnaryOperator<String> escape) {
+        Matcher m = VARIABLE_PATTERN.matcher(template);
+        StringBuffer sb = new StringBuffer();
+        while (m.find()) {
+            String value = values.containsKey(m.group(1)) ? values.get(m.group(1)) : "";
+            m.appendReplacement(sb, Matcher.quoteReplacement(escape.apply(value)));
+        }
+        m.appendTail(sb);
+        return sb.toString();
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return value;
+        }
+    }
+
+    /**
+     * @return the value escaped to be put inside a JSON string
+     */
+    private static String escape(String value) {
+        String quoted = JSONObject.quote(value);
+        return quoted.substring(1, quoted.length() - 1);
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return value;
+        }
+    }
+
+    private static void save() {
+        if (flowFile == null)
+            return;
+        JSONObject json = new JSONObject();
+        for (Map.Entry<String, LoginFlow> entry : FLOWS.entrySet())
+            json.put(entry.getKey(), entry.getValue().toJSON());
+        try {
+            Utils.writePrivate(flowFile, json.toString(2).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Logger.log(Level.WARNING, "Cannot write recorded flows : " + e);
+        }
+    }
+
+    private JSONObject toJSON() {
+        JSONArray jsonSteps = new JSONArray();
+        for (Step step : steps) {
+            JSONObject json = new JSONObject().put("method", step.method).put("url", step.url);
+            if (step.body != null)
+                json.put("body", step.body).put("type", step.contentType);
+            jsonSteps.put(json);
+        }
+        JSONObject jsonVariables = new JSONObject();
+        for (Map.Entry<String, Variable> entry : variables.entrySet()) {
+            Variable variable = entry.getValue();
+            jsonVariables.put(entry.getKey(), variable.field != null ? new JSONObject().put("field", variable.field)
+                    : new JSONObject().put("prefix", variable.prefix).put("suffix", variable.suffix));
+        }
+        return new JSONObject().put("steps", jsonSteps).put("variables", jsonVariables);
+    }
+
+    private static LoginFlow fromJSON(JSONObject json) {
+        List<Step> steps = new ArrayList<>();
+        JSONArray jsonSteps = json.getJSONArray("steps");
+        for (int i = 0; i < jsonSteps.length(); i++) {
+            JSONObject step = jsonSteps.getJSONObject(i);
+            steps.add(new Step(step.getString("method"), step.getString("url"), step.optString("type", null),
+                    step.optString("body", null)));
+        }
+        Map<String, Variable> variables = new LinkedHashMap<>();
+        JSONObject jsonVariables = json.getJSONObject("variables");
+        for (String name : jsonVariables.keySet()) {
+            JSONObject variable = jsonVariables.getJSONObject(name);
+            variables.put(name, new Variable(variable.optString("field", null), variable.optString("prefix", null),
+                    variable.optString("suffix", null)));
+        }
+        return new LoginFlow(steps, variables);
+    }
+}
@@ -0,0 +1,209 @@
+package fr.klemek.autologin;
+
+import fr.klemek.logger.Logger;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Phase timers, counters and latency histograms, exported as JSON or Prometheus text.
+ *
+ * @author Clement Gouin
+ */
+final class Metrics {
+
+    /**
+     * Upper bounds of the histogram buckets in ms, the last bucket is +Inf.
+     */
+    private static final long[] BUCKETS = {10, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+
+    private static final String PREFIX = "autologin_";
+
+    private static final Map<String, AtomicLong> COUNTERS = new TreeMap<>();
+    private static final Map<String, Histogram> HISTOGRAMS = new TreeMap<>();
+
+    private static HttpServer server;
+
+    private Metrics() {
+    }
+
+    /**
+     * Record the duration of a phase.
+     *
+     * @param phase the name of the phase
+     * @param start the start of the phase, from System.nanoTime()
+     * @return the duration in ms
+     */
+    static long time(String phase, long start) {
+        long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Histogram histogram;
+        synchronized (HISTOGRAMS) {
+            histogram = HISTOGRAMS.computeIfAbsent(phase, k -> new Histogram());
+        }
+        histogram.record(ms);
+        Logger.log(Level.FINE, "{0} took {1} ms", phase, ms);
+        return ms;
+    }
+
+    /**
+     * Increment a counter.
+     *
+     * @param name the name of the counter
+     */
+    static void increment(String name) {
+        AtomicLong counter;
+        synchronized (COUNTERS) {
+            counter = COUNTERS.computeIfAbsent(name, k -> new AtomicLong());
+        }
+        counter.incrementAndGet();
+    }
+
+    /**
+     * @return a snapshot of all metrics as JSON
+     */
+    static JSONObject toJSON() {
+        JSONObject counters = new JSONObject();
+        synchronized (COUNTERS) {
+            for (Map.Entry<String, AtomicLong> entry : COUNTERS.entrySet())
+                counters.put(entry.getKey(), entry.getValue().get());
+        }
+        JSONObject phases = new JSONObject();
+        synchronized (HISTOGRAMS) {
+            for (Map.Entry<String, Histogram> entry : HISTOGRAMS.entrySet())
+                phases.put(entry.getKey(), entry.getValue().toJSON());
+        }
+        return new JSONObject()
+                .put("timestamp", System.currentTimeMillis())
+                .put("counters", counters)
+                .put("phases", phases);
+    }
+
+    /**
+     * @return a snapshot of all metrics in Prometheus text format
+     */
+    static String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (COUNTERS) {
+            for (Map.Entry<String, AtomicLong> entry : COUNTERS.entrySet()) {
+                String name = PREFIX + entry.getKey() + "_total";
+                sb.append("# TYPE ").append(name).append(" counter\n");
+                sb.append(name).append(' ').append(entry.getValue().get()).append('\n');
+            }
+        }
+        synchronized (HISTOGRAMS) {
+            if (!HISTOGRAMS.isEmpty())
+                sb.append("# TYPE ").append(PREFIX).append("phase_duration_ms histogram\n");
+            for (Map.Entry<String, Histogram> entry : HISTOGRAMS.entrySet())
+                entry.getValue().appendPrometheus(sb, PREFIX + "phase_duration_ms", entry.getKey());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Write a snapshot into a file, as JSON if its name ends with .json, in Prometheus text format otherwise.
+     * The file is replaced atomically.
+     *
+     * @param file the file to write
+     */
+    static void export(File file) {
+        String content = file.getName().endsWith(".json") ? toJSON().toString(2) : toPrometheus();
+        try {
+            File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+            Files.write(temp.toPath(), content.getBytes(StandardCharsets.UTF_8));
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Logger.log(Level.WARNING, "Cannot write metrics : " + e);
+        }
+    }
+
+    /**
+     * Serve the metrics on /metrics (Prometheus) and /metrics.json on localhost.
+     *
+     * @param port the port to listen on
+     */
+    static synchronized void serve(int port) {
+        if (server != null)
+            return;
+        try {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        } catch (IOException e) {
+            Logger.log(Level.WARNING, "Cannot serve metrics on port " + port + " : " + e);
+            return;
+        }
+        server.createContext("/metrics", exchange -> {
+            boolean json = exchange.getRequestURI().getPath().endsWith(".json");
+            byte[] body = (json ? toJSON().toString(2) : toPrometheus()).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", json ? "application/json" : "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.start();
+        Logger.log("Serving metrics on http://127.0.0.1:" + port + "/metrics");
+    }
+
+    private static class Histogram {
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS.length + 1);
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long ms) {
+            int i = 0;
+            while (i < BUCKETS.length && ms > BUCKETS[i])
+                i++;
+            counts.incrementAndGet(i);
+            sum.addAndGet(ms);
+            max.accumulateAndGet(ms, Math::max);
+        }
+
+        long count() {
+            long count = 0;
+            for (int i = 0; i < counts.length(); i++)
+                count += counts.get(i);
+            return count;
+        }
+
+        JSONObject toJSON() {
+            JSONArray buckets = new JSONArray();
+            for (int i = 0; i < counts.length(); i++)
+                buckets.put(new JSONObject()
+                        .put("le", i < BUCKETS.length ? String.valueOf(BUCKETS[i]) : "+Inf")
+                        .put("count", counts.get(i)));
+            return new JSONObject()
+                    .put("count", count())
+                    .put("sum", sum.get())
+                    .put("max", max.get())
+                    .put("buckets", buckets);
+        }
+
+        void appendPrometheus(StringBuilder sb, String name, String phase) {
+            long cumulative = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                cumulative += counts.get(i);
+                sb.append(name).append("_bucket{phase=\"").append(phase).append("\",le=\"")
+                        .append(i < BUCKETS.length ? String.valueOf(BUCKETS[i]) : "+Inf").append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            sb.append(name).append("_sum{phase=\"").append(phase).append("\"} ").append(sum.get()).append('\n');
+            sb.append(name).append("_count{phase=\"").append(phase).append("\"} ").append(cumulative).append('\n');
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package fr.klemek.autologin;
+
+import fr.klemek.logger.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Watch the network configuration of a Linux host and run an action when it changes :
+ * routing table (/proc/net/route), interface states (/sys/class/net/[name]/operstate) and addresses.
+ * These are kernel pseudo files that cannot be watched with inotify, they are read at a short interval
+ * instead, which costs no network traffic. The action runs once the change is stable for one poll.
+ *
+ * @author Clement Gouin
+ */
+final class NetworkWatcher {
+
+    private static final File ROUTES = new File("/proc/net/route");
+    private static final File INTERFACES = new File("/sys/class/net");
+
+    private static ScheduledExecutorService scheduler;
+
+    private NetworkWatcher() {
+    }
+
+    /**
+     * Start watching in background.
+     *
+     * @param poll     the delay between two reads in ms
+     * @param onChange the action to run when the network changed
+     * @return true if the watcher is running (only on Linux)
+     */
+    static synchronized boolean start(long poll, Runnable onChange) {
+        if (scheduler != null)
+            return true;
+        if (Utils.detectOS() != OS.UNIX || !ROUTES.canRead()) {
+            Logger.log(Level.INFO, "Network change watcher not available on this system");
+            return false;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "network-watcher");
+            t.setDaemon(true);
+            return t;
+        });
+        State state = new State(snapshot());
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                state.update(snapshot(), onChange);
+            } catch (Exception e) {
+                Logger.log(e);
+            }
+        }, poll, poll, TimeUnit.MILLISECONDS);
+        Logger.log("Watching network changes every " + poll + " ms");
+        return true;
+    }
+
+    /**
+     * Stop watching.
+     */
+    static synchronized void stop() {
+        if (scheduler == null)
+            return;
+        scheduler.shutdownNow();
+        scheduler = null;
+    }
+
+    /**
+     * The last seen network configuration and whether a change is waiting to settle.
+     */
+    private static class State {
+
+        private String last;
+        private boolean pending;
+
+        State(String initial) {
+            this.last = initial;
+        }
+
+        void update(String current, Runnable onChange) {
+            if (!current.equals(last)) {
+                if (!pending)
+                    Logger.log("Network change detected");
+                last = current;
+                pending = true;
+            } else if (pending) {
+                pending = false;
+                Metrics.increment("network_changes");
+                onChange.run();
+            }
+        }
+    }
+
+    /**
+     * @return a text describing the routes, the interface states and addresses, equal as long as nothing changed
+     */
+    static String snapshot() {
+        StringBuilder sb = new StringBuilder();
+        try {
+            sb.append(new String(Files.readAllBytes(ROUTES.toPath()), StandardCharsets.US_ASCII));
+        } catch (IOException e) {
+            sb.append(e.getMessage());
+        }
+        String[] names = INTERFACES.list();
+        if (names != null) {
+            Arrays.sort(names);
+            for (String name : names) {
+                sb.append('\n').append(name).append(' ');
+                try {
+                    sb.append(new String(Files.readAllBytes(new File(new File(INTERFACES, name), "operstate").toPath()),
+                            StandardCharsets.US_ASCII).trim());
+                } catch (IOException e) {
+                    sb.append('?');
+                }
+            }
+        }
+        try {
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            List<String> lines = new ArrayList<>();
+            if (interfaces != null)
+                for (NetworkInterface ni : Collections.list(interfaces)) {
+                    List<String> addresses = new ArrayList<>();
+                    for (InetAddress address : Collections.list(ni.getInetAddresses()))
+                        addresses.add(address.getHostAddress());
+                    Collections.sort(addresses);
+                    lines.add(ni.getName() + " " + addresses);
+                }
+            Collections.sort(lines);
+            for (String line : lines)
+                sb.append('\n').append(line);
+        } catch (SocketException e) {
+            sb.append('\n').append(e.getMessage());
+        }
+        return sb.toString();
+    }
+}
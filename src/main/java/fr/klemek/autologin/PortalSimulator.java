@@ -0,0 +1,283 @@
+package fr.klemek.autologin;
+
+import fr.klemek.logger.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+
+/**
+ * An in-process captive portal built on the JDK http server.
+ * Every request to / on the probe ports is redirected to the login page until a valid login is posted,
+ * then it answers like the outgoing port tester (or with a 204 on /generate_204).
+ * The page shown after login points to a keep-alive page resuming the session after an idle timeout.
+ *
+ * @author Clement Gouin
+ */
+final class PortalSimulator {
+
+    static final String PAGE_TITLE = "Network Login";
+    static final String USERNAME_ID = "LoginUserPassword_auth_username";
+    static final String PASS_ID = "LoginUserPassword_auth_password";
+    static final String BUTTON_ID = "UserCheck_Login_Button";
+    static final String LOGIN_PATH = "/connect/PortalMain";
+    static final String NO_CONTENT_PATH = "/generate_204";
+    static final String KEEP_ALIVE_PATH = "/connect/KeepAlive";
+    static final String TEST_HEAD = "<html>\n<head>\n<title>Outgoing Port Tester</title>";
+
+    private static final String SESSION_COOKIE = "PORTAL_SESSION";
+
+    private final String login;
+    private final String pass;
+    private final int latency;
+    private final double failureRate;
+    private final boolean redirect;
+    private final boolean requireCookie;
+    private final Random random = new Random();
+    private final List<HttpServer> servers = new ArrayList<>();
+    private final Map<String, String> sessions = new HashMap<>();
+    private final Set<String> authenticated = new HashSet<>();
+
+    private volatile boolean connected;
+    private volatile int logins;
+
+    /**
+     * @param login         the expected login
+     * @param pass          the expected password
+     * @param latency       the delay added to each response in ms
+     * @param failureRate   the ratio of requests answered with a 503 error (0 to 1)
+     * @param redirect      true to serve the login page through a redirect from the login path
+     * @param requireCookie true to refuse logins without the session cookie set on the login page
+     */
+    PortalSimulator(String login, String pass, int latency, double failureRate, boolean redirect,
+                    boolean requireCookie) {
+        this.login = login;
+        this.pass = pass;
+        this.latency = latency;
+        this.failureRate = failureRate;
+        this.redirect = redirect;
+        this.requireCookie = requireCookie;
+    }
+
+    /**
+     * Start the portal, the first port serves the login page, all of them serve the probe page.
+     *
+     * @param probePorts the number of ports to listen on
+     * @throws IOException if a server cannot be started
+     */
+    void start(int probePorts) throws IOException {
+        for (int i = 0; i < Math.max(probePorts, 1); i++) {
+            HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.setExecutor(Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "portal-simulator");
+                t.setDaemon(true);
+                return t;
+            }));
+            server.createContext("/", this::handle);
+            server.start();
+            servers.add(server);
+        }
+        Logger.log("Portal simulator listening on " + getAddress());
+    }
+
+    /**
+     * Stop all the servers.
+     */
+    void stop() {
+        for (HttpServer server : servers)
+            server.stop(0);
+        servers.clear();
+    }
+
+    /**
+     * Go back to the captive state, as if the session expired.
+     */
+    void disconnect() {
+        connected = false;
+        synchronized (sessions) {
+            sessions.clear();
+            authenticated.clear();
+        }
+    }
+
+    /**
+     * Cut the access as an idle timeout does, the session can still be resumed on the keep-alive page.
+     */
+    void expire() {
+        connected = false;
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    int getLogins() {
+        return logins;
+    }
+
+    /**
+     * @return the url of the login page
+     */
+    String getAddress() {
+        return "http://127.0.0.1:" + getPorts().get(0) + LOGIN_PATH;
+    }
+
+    /**
+     * @return the ports to use as test ports
+     */
+    List<Integer> getPorts() {
+        List<Integer> ports = new ArrayList<>();
+        for (HttpServer server : servers)
+            ports.add(server.getAddress().getPort());
+        return ports;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (latency > 0)
+                Thread.sleep(latency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failureRate > 0 && random.nextDouble() < failureRate) {
+            send(exchange, 503, "<html><body>Service unavailable</body></html>");
+            return;
+        }
+        String path = exchange.getRequestURI().getPath();
+        if (path.equals(LOGIN_PATH) && redirect && "GET".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().set("Location", LOGIN_PATH + "/Page");
+            send(exchange, 302, "");
+        } else if (path.equals(LOGIN_PATH) || path.equals(LOGIN_PATH + "/Page")) {
+            if ("POST".equals(exchange.getRequestMethod()))
+                handleLogin(exchange);
+            else
+                sendLoginPage(exchange);
+        } else if (path.equals(KEEP_ALIVE_PATH)) {
+            handleKeepAlive(exchange);
+        } else if (connected && path.equals(NO_CONTENT_PATH)) {
+            send(exchange, 204, "");
+        } else if (connected) {
+            send(exchange, 200, TEST_HEAD + "\n</head>\n<body>You are connected</body>\n</html>");
+        } else {
+            exchange.getResponseHeaders().set("Location",
+                    "http://127.0.0.1:" + servers.get(0).getAddress().getPort() + LOGIN_PATH);
+            send(exchange, 302, "");
+        }
+    }
+
+    private void sendLoginPage(HttpExchange exchange) throws IOException {
+        String session = getCookie(exchange, SESSION_COOKIE);
+        String token;
+        synchronized (sessions) {
+            token = session == null ? null : sessions.get(session);
+            if (token == null) {
+                session = UUID.randomUUID().toString();
+                token = UUID.randomUUID().toString();
+                sessions.put(session, token);
+            }
+        }
+        exchange.getResponseHeaders().add("Set-Cookie", SESSION_COOKIE + "=" + session + "; Path=/");
+        send(exchange, 200, "<html>\n<head>\n<title>" + PAGE_TITLE + "</title>\n</head>\n<body>\n"
+                + "<form method=\"post\" action=\"" + LOGIN_PATH + "\">\n"
+                + "<input type=\"hidden\" name=\"token\" value=\"" + token + "\"/>\n"
+                + "<input type=\"text\" id=\"" + USERNAME_ID + "\" name=\"username\"/>\n"
+                + "<input type=\"password\" id=\"" + PASS_ID + "\" name=\"password\"/>\n"
+                + "<input type=\"submit\" id=\"" + BUTTON_ID + "\" name=\"login\" value=\"Log In\"/>\n"
+                + "</form>\n</body>\n</html>");
+    }
+
+    private void handleLogin(HttpExchange exchange) throws IOException {
+        Map<String, String> form = parseForm(exchange.getRequestBody());
+        String session = getCookie(exchange, SESSION_COOKIE);
+        String token;
+        synchronized (sessions) {
+            token = session == null ? null : sessions.get(session);
+        }
+        boolean validSession = !requireCookie || (token != null && token.equals(form.get("token")));
+        if (validSession && login.equals(form.get("username")) && pass.equals(form.get("password"))) {
+            connected = true;
+            logins++;
+            synchronized (sessions) {
+                authenticated.add(session);
+            }
+            send(exchange, 200, "<html><head><title>Connected</title>"
+                    + "<meta http-equiv=\"refresh\" content=\"300;url=" + KEEP_ALIVE_PATH + "\"/>"
+                    + "</head><body>Welcome</body></html>");
+        } else {
+            Logger.log(Level.FINE, "Simulator refused login (valid session : {0})", validSession);
+            sendLoginPage(exchange);
+        }
+    }
+
+    private void handleKeepAlive(HttpExchange exchange) throws IOException {
+        String session = getCookie(exchange, SESSION_COOKIE);
+        boolean valid;
+        synchronized (sessions) {
+            valid = session != null && authenticated.contains(session);
+        }
+        if (valid) {
+            connected = true;
+            send(exchange, 200, "<html><head><title>Connected</title></head><body>Still connected</body></html>");
+        } else {
+            exchange.getResponseHeaders().set("Location", LOGIN_PATH);
+            send(exchange, 302, "");
+        }
+    }
+
+    private static String getCookie(HttpExchange exchange, String name) {
+        List<String> headers = exchange.getRequestHeaders().get("Cookie");
+        if (headers != null)
+            for (String header : headers)
+                for (String cookie : header.split(";")) {
+                    String[] parts = cookie.trim().split("=", 2);
+                    if (parts.length == 2 && parts[0].equals(name))
+                        return parts[1];
+                }
+        return null;
+    }
+
+    private static Map<String, String> parseForm(InputStream is) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        for (int n; (n = is.read(buf)) >= 0; )
+            bos.write(buf, 0, n);
+        Map<String, String> form = new HashMap<>();
+        for (String pair : new String(bos.toByteArray(), StandardCharsets.UTF_8).split("&")) {
+            String[] parts = pair.split("=", 2);
+            if (parts.length == 2)
+                form.put(decode(parts[0]), decode(parts[1]));
+        }
+        return form;
+    }
+
+    private static String decode(String value) throws UnsupportedEncodingException {
+        return URLDecoder.decode(value, "UTF-8");
+    }
+
+    private static void send(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+        exchange.sendResponseHeaders(code, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+}
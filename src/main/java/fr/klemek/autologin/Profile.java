@@ -0,0 +1,133 @@
+package fr.klemek.autologin;
+
+import java.net.CookieManager;
+import java.net.CookiePolicy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A portal to check and log into, with its own configuration and state.
+ * Keys are read as 'name.key' first then fall back to the shared 'key',
+ * so a profile only needs to define what differs from the defaults.
+ *
+ * @author Clement Gouin
+ */
+final class Profile {
+
+    final String name;
+
+    /**
+     * The login parameters, loaded on first login (see App.loadParams) and built again after a configuration change.
+     * The map is never modified, only replaced by the thread checking the profile.
+     */
+    volatile Map<String, String> params;
+
+    /**
+     * The configuration the parameters were built from.
+     */
+    private volatile Config paramsConfig;
+
+    /**
+     * The portal url we were redirected to by the detection probe, used when no address is configured.
+     */
+    volatile String portal;
+
+    /**
+     * The http code of the last answer of the portal to a login, 0 if unknown (browser logins).
+     */
+    volatile int loginCode;
+
+    final CircuitBreaker breaker;
+
+    final LinkQuality quality = new LinkQuality();
+
+    /**
+     * The cookies of the portal session, kept apart from the other profiles as they may log into the same host.
+     */
+    final CookieManager cookies = new CookieManager(null, CookiePolicy.ACCEPT_ALL);
+
+    Profile(String name) {
+        this.name = name;
+        this.breaker = new CircuitBreaker(toString(), () -> getInt("breaker_threshold", 5),
+                () -> getInt("breaker_cooldown", 300) * 1000L);
+    }
+
+    /**
+     * Read the profiles listed in the 'profiles' key, or a single default profile if there is none.
+     *
+     * @return the profiles to check
+     */
+    static List<Profile> loadAll() {
+        return loadAll(Collections.<Profile>emptyList());
+    }
+
+    /**
+     * Read the profiles again after a configuration change, keeping the state of the ones still listed.
+     * They are not modified (a check may be running), their login parameters are built again on their next login.
+     *
+     * @param previous the profiles currently in use
+     * @return the profiles to check
+     */
+    static List<Profile> loadAll(List<Profile> previous) {
+        Map<String, Profile> known = new HashMap<>();
+        for (Profile profile : previous)
+            known.put(profile.toString(), profile);
+        List<Profile> profiles = new ArrayList<>();
+        for (String name : Config.get().getList("profiles"))
+            profiles.add(known.containsKey(name) ? known.get(name) : new Profile(name));
+        if (profiles.isEmpty())
+            profiles.add(known.containsKey("default") ? known.get("default") : new Profile(null));
+        return profiles;
+    }
+
+    /**
+     * @return true if the login parameters are loaded from the current configuration
+     */
+    boolean hasParams() {
+        return params != null && paramsConfig == Config.get();
+    }
+
+    /**
+     * @param params the login parameters, not modified afterwards
+     * @param config the configuration they were built from
+     */
+    void setParams(Map<String, String> params, Config config) {
+        this.paramsConfig = config;
+        this.params = params;
+    }
+
+    String getString(String key) {
+        Config config = Config.get();
+        String value = name == null ? null : config.getString(name + "." + key);
+        return value == null ? config.getString(key) : value;
+    }
+
+    int getInt(String key, int defaultValue) {
+        Config config = Config.get();
+        if (name != null && config.getString(name + "." + key) != null)
+            return config.getInt(name + "." + key, defaultValue);
+        return config.getInt(key, defaultValue);
+    }
+
+    List<String> getList(String key) {
+        Config config = Config.get();
+        if (name != null && config.getString(name + "." + key) != null)
+            return config.getList(name + "." + key);
+        return config.getList(key);
+    }
+
+    List<Integer> getInts(String key) {
+        Config config = Config.get();
+        if (name != null && config.getString(name + "." + key) != null)
+            return config.getInts(name + "." + key);
+        return config.getInts(key);
+    }
+
+    @Override
+    public String toString() {
+        return name == null ? "default" : name;
+    }
+}
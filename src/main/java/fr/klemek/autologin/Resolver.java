@@ -0,0 +1,295 @@
+package fr.klemek.autologin;
+
+import fr.klemek.logger.Logger;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+
+/**
+ * Resolve the probe and portal host names ahead of the checks and keep their addresses for a fixed time.
+ * Lookups run in background and are only waited for up to a timeout, so a broken resolver cannot stall a check :
+ * the last known address is used instead, or the request fails at once.
+ * Plain http probes connect to the cached address directly (with the original Host header).
+ * <p>
+ * A host is confirmed public when a check passes through a public answer. If such a host then resolves
+ * to private addresses only, the DNS is most likely answered by a captive portal : the answer is not cached
+ * and the network is reported as captured until a public answer comes back.
+ *
+ * @author Clement Gouin
+ */
+final class Resolver {
+
+    /**
+     * Expired entries are kept as a fallback for a broken or hijacked resolver, up to this many TTLs.
+     */
+    private static final int MAX_STALE = 10;
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "dns");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final Map<String, Entry> CACHE = new ConcurrentHashMap<>();
+    private static final Map<String, Future<InetAddress[]>> PENDING = new ConcurrentHashMap<>();
+    private static final Set<String> PROBE_HOSTS = ConcurrentHashMap.newKeySet();
+    private static final Set<String> HIJACKED = ConcurrentHashMap.newKeySet();
+    /**
+     * Hosts seen on a public address by a passed check, kept whatever happens to their cache entry.
+     */
+    private static final Set<String> CONFIRMED = ConcurrentHashMap.newKeySet();
+
+    private static volatile long ttl = 300000;
+    private static volatile long timeout = 1000;
+    private static volatile boolean pinProbes = true;
+
+    private Resolver() {
+    }
+
+    /**
+     * A cached answer.
+     */
+    private static final class Entry {
+
+        final InetAddress[] addresses;
+        final long resolved;
+
+        Entry(InetAddress[] addresses) {
+            this.addresses = addresses;
+            this.resolved = System.currentTimeMillis();
+        }
+
+        boolean isFresh() {
+            return System.currentTimeMillis() - resolved < ttl;
+        }
+
+        boolean isUsable() {
+            return System.currentTimeMillis() - resolved < ttl * MAX_STALE;
+        }
+    }
+
+    /**
+     * Set the cache settings.
+     *
+     * @param ttlSeconds the time an answer is kept in seconds
+     * @param timeoutMs  the time a lookup is waited for in ms
+     * @param pin        false to never connect to cached addresses directly
+     */
+    static void configure(int ttlSeconds, int timeoutMs, boolean pin) {
+        ttl = Math.max(ttlSeconds, 1) * 1000L;
+        timeout = Math.max(timeoutMs, 1);
+        pinProbes = pin;
+    }
+
+    /**
+     * Register the probe hosts of a profile and resolve its probe and portal hosts in background if needed.
+     *
+     * @param profile the profile about to be checked
+     */
+    static void register(Profile profile) {
+        List<String> probes = new ArrayList<>(profile.getList("test_address"));
+        if (profile.getString("probe_url") != null)
+            probes.add(profile.getString("probe_url"));
+        for (String host : hosts(probes)) {
+            PROBE_HOSTS.add(host);
+            prefetch(host);
+        }
+        for (String host : hosts(Arrays.asList(profile.getString("address"), profile.portal)))
+            prefetch(host);
+    }
+
+    /**
+     * Mark the probe hosts of a profile currently resolved to public addresses as confirmed, to call when its
+     * check passed.
+     *
+     * @param profile the profile checked
+     */
+    static void confirm(Profile profile) {
+        List<String> probes = new ArrayList<>(profile.getList("test_address"));
+        probes.add(profile.getString("probe_url"));
+        for (String host : hosts(probes)) {
+            Entry entry = CACHE.get(host);
+            if (entry != null && !HIJACKED.contains(host) && !isPrivate(entry.addresses))
+                CONFIRMED.add(host);
+        }
+    }
+
+    /**
+     * Resolve the probe hosts of a profile and tell if one of them moved from a public to a private address.
+     *
+     * @param profile the profile to check
+     * @return true if the DNS seems hijacked by a portal
+     */
+    static boolean isHijacked(Profile profile) {
+        List<String> probes = new ArrayList<>(profile.getList("test_address"));
+        probes.add(profile.getString("probe_url"));
+        boolean hijacked = false;
+        for (String host : hosts(probes)) {
+            try {
+                lookup(host);
+            } catch (UnknownHostException e) {
+                Logger.log(Level.FINE, "Cannot resolve {0} : {1}", host, e.getMessage());
+            }
+            hijacked |= HIJACKED.contains(host);
+        }
+        return hijacked;
+    }
+
+    /**
+     * Give the addresses of a host, from the cache while fresh, then from a lookup waited for up to the timeout.
+     * When the lookup fails, times out or is hijacked, the expired answer is used if any.
+     *
+     * @param host the host name or literal address
+     * @return the addresses
+     * @throws UnknownHostException if the host cannot be resolved in time
+     */
+    static InetAddress[] lookup(String host) throws UnknownHostException {
+        if (isLiteral(host))
+            return InetAddress.getAllByName(host);
+        Entry entry = CACHE.get(host);
+        if (entry != null && entry.isFresh())
+            return entry.addresses;
+
+        Future<InetAddress[]> future = prefetch(host);
+        String error;
+        try {
+            InetAddress[] addresses = future.get(timeout, TimeUnit.MILLISECONDS);
+            if (!HIJACKED.contains(host))
+                return addresses;
+            error = "hijacked answer " + addresses[0].getHostAddress();
+        } catch (TimeoutException e) {
+            Metrics.increment("dns_timeouts");
+            error = "timed out after " + timeout + " ms";
+        } catch (ExecutionException e) {
+            error = String.valueOf(e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = "interrupted";
+        }
+        entry = CACHE.get(host);
+        if (entry != null && entry.isUsable()) {
+            Logger.log(Level.FINE, "Lookup of {0} {1}, using last known address", host, error);
+            return entry.addresses;
+        }
+        if (entry != null)
+            CACHE.remove(host, entry);
+        throw new UnknownHostException(host + " : " + error);
+    }
+
+    /**
+     * Give the url to connect to for a request : plain http urls of probe hosts are rewritten to the cached address,
+     * other urls of probe hosts are only resolved ahead (so a broken resolver fails them at once)
+     * and urls of other hosts are left to the system resolver.
+     *
+     * @param url the url of the request
+     * @return the url to connect to, the original host must then be sent in the Host header if it changed
+     * @throws UnknownHostException if the host cannot be resolved in time
+     */
+    static URL pin(URL url) throws UnknownHostException {
+        String host = url.getHost();
+        if (host == null || host.isEmpty() || isLiteral(host) || !PROBE_HOSTS.contains(host))
+            return url;
+        InetAddress[] addresses = lookup(host);
+        if (!pinProbes || !"http".equals(url.getProtocol()))
+            return url;
+        try {
+            return new URL(url.getProtocol(), addresses[0].getHostAddress(), url.getPort(), url.getFile());
+        } catch (MalformedURLException e) {
+            return url;
+        }
+    }
+
+    /**
+     * Start a background lookup unless the cache is fresh or one is already running.
+     *
+     * @param host the host name
+     * @return the running lookup
+     */
+    private static Future<InetAddress[]> prefetch(String host) {
+        Future<InetAddress[]> running = PENDING.get(host);
+        if (running != null && !running.isDone())
+            return running;
+        if (running != null)
+            PENDING.remove(host, running);
+        return PENDING.computeIfAbsent(host, h -> EXECUTOR.submit(() -> {
+            long start = System.nanoTime();
+            InetAddress[] addresses = InetAddress.getAllByName(h);
+            Metrics.time("dns_lookup", start);
+            store(h, addresses);
+            return addresses;
+        }));
+    }
+
+    private static void store(String host, InetAddress[] addresses) {
+        boolean local = isPrivate(addresses);
+        if (local && CONFIRMED.contains(host)) {
+            if (HIJACKED.add(host)) {
+                Logger.log(Level.WARNING, "DNS answers for " + host + " changed to the private address "
+                        + addresses[0].getHostAddress() + ", the network seems captured");
+                Metrics.increment("dns_hijacks");
+            }
+            return;
+        }
+        if (!local && HIJACKED.remove(host))
+            Logger.log("DNS answers for " + host + " are public again");
+        CACHE.put(host, new Entry(addresses));
+    }
+
+    /**
+     * @param addresses resolved addresses
+     * @return true if all of them are loopback, link local, private, shared (100.64/10) or unique local (fc00::/7)
+     */
+    static boolean isPrivate(InetAddress[] addresses) {
+        for (InetAddress address : addresses) {
+            byte[] raw = address.getAddress();
+            boolean local = address.isLoopbackAddress() || address.isLinkLocalAddress()
+                    || address.isSiteLocalAddress() || address.isAnyLocalAddress()
+                    || (address instanceof Inet4Address && (raw[0] & 0xFF) == 100 && (raw[1] & 0xC0) == 64)
+                    || (address instanceof Inet6Address && (raw[0] & 0xFE) == 0xFC);
+            if (!local)
+                return false;
+        }
+        return addresses.length > 0;
+    }
+
+    private static boolean isLiteral(String host) {
+        return host.indexOf(':') >= 0 || host.matches("[0-9.]+");
+    }
+
+    private static List<String> hosts(List<String> urls) {
+        List<String> hosts = new ArrayList<>();
+        for (String url : urls) {
+            if (url == null || url.isEmpty())
+                continue;
+            String host = url;
+            if (url.contains("://")) {
+                try {
+                    host = URI.create(url).getHost();
+                } catch (IllegalArgumentException e) {
+                    host = null;
+                }
+            }
+            if (host != null && !isLiteral(host) && !hosts.contains(host))
+                hosts.add(host);
+        }
+        return hosts;
+    }
+}
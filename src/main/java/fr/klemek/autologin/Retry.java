@@ -0,0 +1,63 @@
+package fr.klemek.autologin;
+
+import fr.klemek.logger.Logger;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+
+/**
+ * Retry an action with exponential backoff and full jitter, guarded by a circuit breaker.
+ *
+ * @author Clement Gouin
+ */
+final class Retry {
+
+    private Retry() {
+    }
+
+    /**
+     * Run the action until it succeeds, the attempts budget is spent or the breaker opens.
+     * The cheap probe must pass before each attempt. When the breaker is half-open a single attempt is made :
+     * if the probe or the action fails the breaker opens again and nothing is retried.
+     *
+     * @param maxAttempts the maximum number of attempts
+     * @param baseDelay   the delay before the first retry in ms, doubled on each retry
+     * @param maxDelay    the maximum delay between two attempts in ms
+     * @param breaker     the circuit breaker of the target
+     * @param probe       the cheap reachability probe run before each attempt
+     * @param action      the action to run (returns true on success)
+     * @return true if the action succeeded
+     */
+    static boolean run(int maxAttempts, long baseDelay, long maxDelay, CircuitBreaker breaker,
+                       BooleanSupplier probe, BooleanSupplier action) {
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            if (!breaker.allowRequest()) {
+                Logger.log(Level.WARNING, "Circuit breaker open, login skipped");
+                return false;
+            }
+            boolean halfOpen = breaker.getState() == CircuitBreaker.State.HALF_OPEN;
+            if (probe.getAsBoolean() && action.getAsBoolean()) {
+                breaker.onSuccess();
+                return true;
+            }
+            breaker.onFailure();
+            if (halfOpen)
+                return false;
+            if (attempt < maxAttempts) {
+                long delay = ThreadLocalRandom.current().nextLong(
+                        Math.min(maxDelay, baseDelay << Math.min(attempt - 1, 30)) + 1);
+                Logger.log(Level.WARNING, "Attempt " + attempt + "/" + maxAttempts + " failed, retrying in "
+                        + delay + " ms");
+                Metrics.increment("login_retries");
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+}
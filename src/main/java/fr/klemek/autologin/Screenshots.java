@@ -0,0 +1,207 @@
+package fr.klemek.autologin;
+
+import fr.klemek.logger.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.openqa.selenium.OutputType;
+import org.openqa.selenium.TakesScreenshot;
+import org.openqa.selenium.WebDriver;
+
+/**
+ * Take screenshots according to a policy and write them in background into a rotating set of files.
+ * With the failure policy only the source of the last pages of each browser is kept in memory, it is written
+ * with a screenshot of the failing page when a login fails, to show the steps that led to it.
+ *
+ * @author Clement Gouin
+ */
+final class Screenshots {
+
+    private static final String PREFIX = "screenshot_";
+
+    enum Policy {
+        OFF,
+        FAILURE,
+        ALWAYS
+    }
+
+    private static Policy policy = Policy.FAILURE;
+    private static int keep = 5;
+    private static File directory = new File(".");
+    private static ThreadPoolExecutor writer;
+    private static boolean hooked;
+
+    /**
+     * The last pages of each browser, not written yet (failure policy).
+     */
+    private static final Map<WebDriver, Deque<Frame>> FRAMES = new WeakHashMap<>();
+
+    private Screenshots() {
+    }
+
+    /**
+     * A screenshot or a page source and the file it goes to.
+     */
+    private static final class Frame {
+
+        final File file;
+        final byte[] content;
+
+        Frame(File file, byte[] content) {
+            this.file = file;
+            this.content = content;
+        }
+    }
+
+    /**
+     * @param newPolicy when to take screenshots (off, failure or always)
+     * @param max       the number of screenshot files to keep
+     * @param dir       the directory to write them into
+     */
+    static synchronized void configure(String newPolicy, int max, File dir) {
+        try {
+            policy = Policy.valueOf(newPolicy.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            Logger.log(Level.WARNING, "Invalid screenshot policy '" + newPolicy + "'");
+        }
+        keep = Math.max(max, 1);
+        directory = dir;
+    }
+
+    /**
+     * Forget the frames kept for a browser, to call when a new login starts in it.
+     *
+     * @param driver the driver about to be used
+     */
+    static synchronized void reset(WebDriver driver) {
+        FRAMES.remove(driver);
+    }
+
+    /**
+     * Capture the page if the policy allows it. With the always policy a screenshot is written in background,
+     * with the failure policy the page source is kept in memory and the kept pages are written on failure
+     * along with a screenshot. The page source is used when the browser cannot take screenshots.
+     *
+     * @param driver  the driver to capture
+     * @param step    the name of the current step, used in the file name
+     * @param failure true if the login failed at this step
+     */
+    static void capture(WebDriver driver, String step, boolean failure) {
+        if (policy == Policy.OFF)
+            return;
+        String name = PREFIX + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date()) + "_" + step;
+        Frame frame = (policy == Policy.ALWAYS || failure) && driver instanceof TakesScreenshot
+                ? screenshot(driver, name) : page(driver, name);
+        if (frame == null)
+            return;
+        if (policy == Policy.ALWAYS) {
+            getWriter().execute(() -> write(frame));
+            return;
+        }
+        for (Frame kept : keep(driver, frame, failure))
+            getWriter().execute(() -> write(kept));
+    }
+
+    private static Frame screenshot(WebDriver driver, String name) {
+        try {
+            return new Frame(new File(directory, name + ".png"),
+                    ((TakesScreenshot) driver).getScreenshotAs(OutputType.BYTES));
+        } catch (RuntimeException e) {
+            Logger.log(Level.WARNING, "Cannot take screenshot : " + e);
+            return null;
+        }
+    }
+
+    private static Frame page(WebDriver driver, String name) {
+        try {
+            String source = "<!-- " + driver.getCurrentUrl() + " -->\n" + driver.getPageSource();
+            return new Frame(new File(directory, name + ".html"), source.getBytes(StandardCharsets.UTF_8));
+        } catch (RuntimeException e) {
+            Logger.log(Level.WARNING, "Cannot read page source : " + e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the frames of the browser to write now, all of them on failure
+     */
+    private static synchronized List<Frame> keep(WebDriver driver, Frame frame, boolean failure) {
+        Deque<Frame> frames = FRAMES.computeIfAbsent(driver, d -> new ArrayDeque<>());
+        frames.addLast(frame);
+        if (frames.size() > keep)
+            frames.removeFirst();
+        if (!failure)
+            return Collections.emptyList();
+        FRAMES.remove(driver);
+        return new ArrayList<>(frames);
+    }
+
+    private static synchronized ThreadPoolExecutor getWriter() {
+        if (writer == null) {
+            writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(keep), r -> {
+                Thread t = new Thread(r, "screenshot-writer");
+                t.setDaemon(true);
+                return t;
+            }, new ThreadPoolExecutor.DiscardOldestPolicy());
+            if (!hooked) {
+                hooked = true;
+                Runtime.getRuntime().addShutdownHook(new Thread(Screenshots::flush));
+            }
+        }
+        return writer;
+    }
+
+    /**
+     * Wait for the pending screenshots to be written, without blocking the captures meanwhile.
+     */
+    static void flush() {
+        ThreadPoolExecutor pending;
+        synchronized (Screenshots.class) {
+            pending = writer;
+            writer = null;
+        }
+        if (pending == null)
+            return;
+        pending.shutdown();
+        try {
+            pending.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void write(Frame frame) {
+        try {
+            Files.write(frame.file.toPath(), frame.content);
+            Logger.log(Level.FINE, "Screenshot saved to {0}", frame.file);
+        } catch (IOException e) {
+            Logger.log(Level.WARNING, "Cannot write screenshot : " + e);
+            return;
+        }
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(PREFIX)
+                && (name.endsWith(".png") || name.endsWith(".html")));
+        if (files == null || files.length <= keep)
+            return;
+        Arrays.sort(files);
+        for (int i = 0; i < files.length - keep; i++)
+            if (!files[i].delete())
+                Logger.log(Level.FINE, "Cannot delete old screenshot {0}", files[i]);
+    }
+}
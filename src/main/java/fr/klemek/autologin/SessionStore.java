@@ -0,0 +1,262 @@
+package fr.klemek.autologin;
+
+import fr.klemek.logger.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.CookieStore;
+import java.net.HttpCookie;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Keep the portal sessions obtained by a login so they can be refreshed with a single request
+ * instead of logging in again. Sessions are persisted to a state file between runs.
+ *
+ * @author Clement Gouin
+ */
+final class SessionStore {
+
+    private static final Pattern META_REFRESH_PATTERN = Pattern.compile(
+            "<meta[^>]+http-equiv\\s*=\\s*[\"']?refresh[\"']?[^>]*content\\s*=\\s*[\"'][^\"']*?url\\s*=\\s*([^\"'>]+)",
+            Pattern.CASE_INSENSITIVE);
+
+    private static final Map<String, Session> SESSIONS = new ConcurrentHashMap<>();
+
+    private static File stateFile;
+    private static boolean loaded;
+
+    private SessionStore() {
+    }
+
+    /**
+     * A portal session : the page to request to keep it alive and the cookies holding it.
+     */
+    private static class Session {
+
+        final String keepAlive;
+        final List<Cookie> cookies;
+        volatile long refreshed;
+
+        Session(String keepAlive, List<Cookie> cookies, long refreshed) {
+            this.keepAlive = keepAlive;
+            this.cookies = cookies;
+            this.refreshed = refreshed;
+        }
+    }
+
+    private static class Cookie {
+
+        final URI uri;
+        final HttpCookie cookie;
+        final long expires;
+
+        Cookie(URI uri, HttpCookie cookie, long expires) {
+            this.uri = uri;
+            this.cookie = cookie;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Set the file holding the sessions saved by a previous run. It is only read when a session is needed,
+     * the cookies of a session are put back in the cookie store of its profile on its first refresh.
+     *
+     * @param file the state file
+     */
+    static synchronized void restore(File file) {
+        stateFile = file;
+        loaded = false;
+        SESSIONS.clear();
+    }
+
+    private static synchronized void ensureLoaded() {
+        if (loaded || stateFile == null)
+            return;
+        loaded = true;
+        File file = stateFile;
+        if (!file.isFile())
+            return;
+        long now = System.currentTimeMillis();
+        try {
+            JSONObject state = new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            for (String name : state.keySet()) {
+                JSONObject json = state.getJSONObject(name);
+                List<Cookie> cookies = new ArrayList<>();
+                JSONArray array = json.optJSONArray("cookies");
+                for (int i = 0; array != null && i < array.length(); i++) {
+                    JSONObject c = array.getJSONObject(i);
+                    long expires = c.optLong("expires", -1);
+                    if (expires >= 0 && expires <= now)
+                        continue;
+                    HttpCookie cookie = new HttpCookie(c.getString("name"), c.getString("value"));
+                    cookie.setDomain(c.optString("domain", null));
+                    cookie.setPath(c.optString("path", null));
+                    cookie.setMaxAge(expires < 0 ? -1 : (expires - now) / 1000);
+                    cookies.add(new Cookie(new URI(c.getString("uri")), cookie, expires));
+                }
+                SESSIONS.put(name, new Session(json.getString("keepalive"), cookies, json.optLong("refreshed", 0)));
+            }
+            Logger.log("Restored " + SESSIONS.size() + " session(s) from " + file);
+        } catch (IOException | JSONException | URISyntaxException | IllegalArgumentException e) {
+            Logger.log(Level.WARNING, "Cannot read session state : " + e);
+        }
+    }
+
+    /**
+     * Remember the session of a profile after a successful login.
+     * The keep-alive page is the 'keepalive_url' of the profile, or the meta refresh target of the page
+     * reached after login, or that page itself.
+     *
+     * @param profile the profile logged in
+     * @param url     the url of the page reached after login
+     * @param html    the source of that page (can be null)
+     * @param cookies cookies to add to the store of the profile (from a browser), can be empty
+     */
+    static void capture(Profile profile, String url, String html, List<HttpCookie> cookies) {
+        ensureLoaded();
+        String keepAlive = profile.getString("keepalive_url");
+        if (keepAlive == null && html != null) {
+            Matcher m = META_REFRESH_PATTERN.matcher(html);
+            if (m.find()) {
+                try {
+                    keepAlive = new URL(new URL(url), m.group(1).trim()).toString();
+                } catch (MalformedURLException e) {
+                    Logger.log(Level.FINE, "Invalid meta refresh url : {0}", m.group(1));
+                }
+            }
+        }
+        if (keepAlive == null)
+            keepAlive = url;
+        if (keepAlive == null)
+            return;
+
+        URI pageUri;
+        URI keepAliveUri;
+        try {
+            pageUri = new URI(url == null ? keepAlive : url);
+            keepAliveUri = new URI(keepAlive);
+        } catch (URISyntaxException e) {
+            Logger.log(Level.WARNING, "Invalid keep-alive url : {0}", keepAlive);
+            return;
+        }
+
+        CookieStore store = profile.cookies.getCookieStore();
+        for (HttpCookie cookie : cookies)
+            store.add(pageUri, cookie);
+
+        long now = System.currentTimeMillis();
+        List<Cookie> held = new ArrayList<>();
+        List<HttpCookie> seen = new ArrayList<>();
+        for (URI uri : Arrays.asList(pageUri, keepAliveUri))
+            for (HttpCookie cookie : store.get(uri))
+                if (!seen.contains(cookie)) {
+                    seen.add(cookie);
+                    held.add(new Cookie(uri, cookie, cookie.getMaxAge() < 0 ? -1 : now + cookie.getMaxAge() * 1000));
+                }
+
+        SESSIONS.put(profile.toString(), new Session(keepAlive, held, now));
+        Logger.log("Session captured with " + held.size() + " cookie(s), keep-alive on " + keepAlive);
+        save();
+    }
+
+    /**
+     * @param profile  the profile
+     * @param interval the time between two refreshes in ms
+     * @return true if the profile has a session that was not refreshed for the given interval
+     */
+    static boolean isDue(Profile profile, long interval) {
+        if (!loaded && stateFile != null) {
+            // the file is written on each refresh, no need to read it if it is recent
+            if (interval <= 0 || !stateFile.isFile()
+                    || System.currentTimeMillis() - stateFile.lastModified() < interval)
+                return false;
+            ensureLoaded();
+        }
+        Session session = SESSIONS.get(profile.toString());
+        return session != null && interval > 0 && System.currentTimeMillis() - session.refreshed >= interval;
+    }
+
+    /**
+     * Request the keep-alive page of the session of the profile.
+     * The session is dropped if the portal answers with an error or its login page.
+     *
+     * @param profile the profile
+     * @return true if the session is still valid
+     */
+    static boolean refresh(Profile profile) {
+        ensureLoaded();
+        Session session = SESSIONS.get(profile.toString());
+        if (session == null)
+            return false;
+        CookieStore store = profile.cookies.getCookieStore();
+        if (store.getCookies().isEmpty())
+            for (Cookie c : session.cookies)
+                store.add(c.uri, c.cookie);
+        Logger.log("Refreshing session on " + session.keepAlive + " ...");
+        long start = System.nanoTime();
+        HttpUtils.HttpResult hr = HttpUtils.executeRequest("GET", session.keepAlive, profile.cookies);
+        long latency = Metrics.time("session_refresh", start);
+        String passFieldId = profile.getString("pass_field_id");
+        boolean alive = hr.code >= 200 && hr.code < 400
+                && (hr.result == null || passFieldId == null || FormLogin.findForm(hr.result, passFieldId) == null);
+        Journal.append(profile, Journal.Phase.REFRESH, latency, hr.code, alive);
+        if (alive) {
+            session.refreshed = System.currentTimeMillis();
+            Metrics.increment("session_refreshes");
+            save();
+            return true;
+        }
+        Logger.log(Level.WARNING, "Session expired (response {0})", hr.code);
+        Metrics.increment("session_expired");
+        SESSIONS.remove(profile.toString());
+        save();
+        return false;
+    }
+
+    private static synchronized void save() {
+        if (stateFile == null)
+            return;
+        JSONObject state = new JSONObject();
+        for (Map.Entry<String, Session> entry : SESSIONS.entrySet()) {
+            JSONArray cookies = new JSONArray();
+            for (Cookie c : entry.getValue().cookies) {
+                JSONObject json = new JSONObject();
+                json.put("uri", c.uri.toString());
+                json.put("name", c.cookie.getName());
+                json.put("value", c.cookie.getValue());
+                if (c.cookie.getDomain() != null)
+                    json.put("domain", c.cookie.getDomain());
+                if (c.cookie.getPath() != null)
+                    json.put("path", c.cookie.getPath());
+                json.put("expires", c.expires);
+                cookies.put(json);
+            }
+            state.put(entry.getKey(), new JSONObject()
+                    .put("keepalive", entry.getValue().keepAlive)
+                    .put("refreshed", entry.getValue().refreshed)
+                    .put("cookies", cookies));
+        }
+        try {
+            Utils.writePrivate(stateFile, state.toString(2).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Logger.log(Level.WARNING, "Cannot write session state : " + e);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package fr.klemek.autologin;
+
+import fr.klemek.logger.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Drive the login flow repeatedly against the portal simulator and report time-to-connected percentiles.
+ * Options are given as key=value arguments after --simulate :
+ * runs (default 20), latency in ms (default 0), failure_rate (default 0), probe_ports (default 2),
+ * redirect (default true), require_cookie (default true), login_engine (default http)
+ * fast_probe (default false, use the no-content probe instead of the port tests)
+ * and idle_expiry (default false, cut the access but keep the portal session between runs).
+ *
+ * @author Clement Gouin
+ */
+final class Simulation {
+
+    private Simulation() {
+    }
+
+    /**
+     * Run the simulation and log the results.
+     *
+     * @param args the key=value options
+     * @return true if every run ended connected
+     */
+    static boolean run(List<String> args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] parts = arg.split("=", 2);
+            if (parts.length == 2)
+                options.put(parts[0], parts[1]);
+            else
+                Logger.log(Level.WARNING, "Ignored simulation option '" + arg + "'");
+        }
+
+        int runs = Integer.parseInt(getOption(options, "runs", "20"));
+        PortalSimulator simulator = new PortalSimulator("user", "secret",
+                Integer.parseInt(getOption(options, "latency", "0")),
+                Double.parseDouble(getOption(options, "failure_rate", "0")),
+                Boolean.parseBoolean(getOption(options, "redirect", "true")),
+                Boolean.parseBoolean(getOption(options, "require_cookie", "true")));
+        try {
+            simulator.start(Integer.parseInt(getOption(options, "probe_ports", "2")));
+        } catch (IOException e) {
+            Logger.log(e);
+            return false;
+        }
+
+        try {
+            Properties props = new Properties();
+            props.setProperty("address", simulator.getAddress());
+            props.setProperty("page_title", PortalSimulator.PAGE_TITLE);
+            props.setProperty("username_field_id", PortalSimulator.USERNAME_ID);
+            props.setProperty("pass_field_id", PortalSimulator.PASS_ID);
+            props.setProperty("button_id", PortalSimulator.BUTTON_ID);
+            props.setProperty("login", "user");
+            props.setProperty("pass", "secret");
+            props.setProperty("login_engine", getOption(options, "login_engine", "http"));
+            props.setProperty("test_address", "http://127.0.0.1");
+            StringBuilder ports = new StringBuilder();
+            for (int port : simulator.getPorts())
+                ports.append(ports.length() == 0 ? "" : ",").append(port);
+            props.setProperty("test_ports", ports.toString());
+            props.setProperty("test_head", PortalSimulator.TEST_HEAD);
+            if (Boolean.parseBoolean(getOption(options, "fast_probe", "false")))
+                props.setProperty("probe_url", "http://127.0.0.1:" + simulator.getPorts().get(0)
+                        + PortalSimulator.NO_CONTENT_PATH);
+            Utils.setProperties(props);
+
+            boolean idleExpiry = Boolean.parseBoolean(getOption(options, "idle_expiry", "false"));
+            Profile profile = new Profile(null);
+            List<Long> times = new ArrayList<>();
+            int failures = 0;
+            for (int i = 0; i < runs; i++) {
+                if (idleExpiry)
+                    simulator.expire();
+                else
+                    simulator.disconnect();
+                long start = System.nanoTime();
+                boolean connected = App.checkAndLogin(profile) && simulator.isConnected();
+                long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                if (connected)
+                    times.add(ms);
+                else
+                    failures++;
+            }
+
+            Collections.sort(times);
+            Logger.log("Simulation : " + runs + " runs, " + failures + " failures, "
+                    + simulator.getLogins() + " logins accepted");
+            if (!times.isEmpty())
+                Logger.log("Time to connected : p50 " + percentile(times, 50) + " ms, p99 "
+                        + percentile(times, 99) + " ms, max " + times.get(times.size() - 1) + " ms");
+            return failures == 0;
+        } finally {
+            simulator.stop();
+        }
+    }
+
+    private static String getOption(Map<String, String> options, String key, String defaultValue) {
+        return options.containsKey(key) ? options.get(key) : defaultValue;
+    }
+
+    private static long percentile(List<Long> sorted, int percent) {
+        int index = (int) Math.ceil(percent / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+    }
+}
@@ -0,0 +1,184 @@
+package fr.klemek.autologin;
+
+import fr.klemek.logger.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Open TCP connections to many host:port pairs at once from a single thread with a non-blocking selector.
+ * Connections are closed as soon as they are established, nothing is sent.
+ *
+ * @author Clement Gouin
+ */
+final class TcpProber {
+
+    private TcpProber() {
+    }
+
+    /**
+     * The outcome of a connection to one target.
+     */
+    static final class Target {
+
+        final String host;
+        final int port;
+        /**
+         * The connect time in ms, or -1 if the connection failed or timed out.
+         */
+        long latency = -1;
+        /**
+         * Why the connection failed, null if it succeeded.
+         */
+        String error = "timeout";
+
+        private SocketChannel channel;
+        private long start;
+
+        Target(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        boolean isConnected() {
+            return latency >= 0;
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    /**
+     * Build the targets for every address on every port.
+     *
+     * @param addresses the hosts, or urls whose host is used
+     * @param ports     the ports to connect to on each host
+     * @return the targets
+     */
+    static List<Target> targets(List<String> addresses, List<Integer> ports) {
+        List<Target> targets = new ArrayList<>();
+        for (String address : addresses) {
+            String host = address;
+            if (address.contains("://")) {
+                host = URI.create(address).getHost();
+                if (host == null)
+                    host = address;
+            }
+            for (int port : ports)
+                targets.add(new Target(host, port));
+        }
+        return targets;
+    }
+
+    /**
+     * Connect to all the targets at once.
+     *
+     * @param targets  the targets, updated with their outcome
+     * @param timeout  the global deadline in ms
+     * @param failFast stop at the first failure, leaving the pending targets as cancelled
+     * @return true if all the targets were reached
+     */
+    static boolean connect(List<Target> targets, long timeout, boolean failFast) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        int pending = 0;
+        boolean success = true;
+        try (Selector selector = Selector.open()) {
+            for (Target target : targets) {
+                InetSocketAddress address;
+                try {
+                    address = new InetSocketAddress(Resolver.lookup(target.host)[0], target.port);
+                } catch (UnknownHostException e) {
+                    target.error = "unknown host";
+                    success = false;
+                    continue;
+                }
+                try {
+                    target.channel = SocketChannel.open();
+                    target.channel.configureBlocking(false);
+                    target.start = System.nanoTime();
+                    if (target.channel.connect(address))
+                        done(target, null);
+                    else {
+                        target.channel.register(selector, SelectionKey.OP_CONNECT, target);
+                        pending++;
+                    }
+                } catch (IOException e) {
+                    done(target, e);
+                    success = false;
+                }
+            }
+
+            while (pending > 0 && (success || !failFast)) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0)
+                    break;
+                selector.select(remaining);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Target target = (Target) key.attachment();
+                    key.cancel();
+                    pending--;
+                    try {
+                        target.channel.finishConnect();
+                        done(target, null);
+                    } catch (IOException e) {
+                        done(target, e);
+                        success = false;
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+            if (pending > 0 && !success)
+                for (Target target : targets)
+                    if (target.channel != null)
+                        target.error = "cancelled";
+        } catch (IOException e) {
+            Logger.log(e);
+            success = false;
+        } finally {
+            for (Target target : targets)
+                close(target);
+        }
+
+        for (Target target : targets) {
+            if (target.isConnected())
+                Logger.log(Level.FINE, "Connected to {0} in {1} ms", target, target.latency);
+            else {
+                Logger.log(Level.WARNING, "Cannot connect to " + target + " : " + target.error);
+                success = false;
+            }
+        }
+        return success;
+    }
+
+    private static void done(Target target, IOException error) {
+        if (error == null) {
+            target.latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - target.start);
+            target.error = null;
+        } else {
+            target.error = error.getMessage() == null ? error.getClass().getSimpleName() : error.getMessage();
+        }
+        close(target);
+    }
+
+    private static void close(Target target) {
+        if (target.channel == null)
+            return;
+        try {
+            target.channel.close();
+        } catch (IOException e) {
+            Logger.log(Level.FINE, "Cannot close channel : {0}", e);
+        }
+        target.channel = null;
+    }
+}
@@ -3,65 +3,30 @@ package fr.klemek.autologin;
 import fr.klemek.logger.Logger;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.Properties;
-import java.util.ResourceBundle;
 import java.util.logging.Level;
 
-import javax.imageio.ImageIO;
-
-import org.openqa.selenium.OutputType;
-import org.openqa.selenium.TakesScreenshot;
-import org.openqa.selenium.WebDriver;
-
 final class Utils {
 
     private Utils() {
 
     }
 
-    private static final ResourceBundle RESOURCE_BUNDLE = ResourceBundle.getBundle("config");
-
-    private static Properties props = null;
-
-    static void createScreenshot(WebDriver driver, String filename) {
-        try {
-            File screenshot = ((TakesScreenshot)driver).getScreenshotAs(OutputType.FILE);
-            ImageIO.write(ImageIO.read(screenshot), "PNG", new File(filename));
-        } catch (IOException ioe) {
-            ioe.printStackTrace();
-        }
+    static void setProperties(Properties properties){
+        Config.set(properties);
     }
 
-    static void loadProperties(String name){
-        props = new Properties();
-        InputStream propIS = null;
-        try{
-            propIS = new FileInputStream(name);
-        }catch(IOException ex){
-            propIS = Thread.currentThread().getContextClassLoader().getResourceAsStream(name);
-        }
-        if(propIS == null){
-            Logger.log(Level.SEVERE,"File '"+name+"' not found");
-        }else{
-            try{
-                props.load(propIS);
-                propIS.close();
-            }catch(IOException e){
-                Logger.log(e);
-            }
-        }
+    static String getString(String key){
+        return Config.get().getString(key);
     }
 
-    static String getString(String key){
-        if(props == null)
-            loadProperties("config.properties");
-        if(props.containsKey(key) && props.getProperty(key).length() > 0)
-            return props.getProperty(key);
-        //Logger.log(Level.WARNING,"Missing string '"+key+"'");
-        return null;
+    static int getInt(String key, int defaultValue){
+        return Config.get().getInt(key, defaultValue);
     }
 
     static void pause(int time){
@@ -93,4 +58,30 @@ final class Utils {
         return System.getProperty("os.arch").contains("64");
     }
 
+    /**
+     * Replace a file holding secrets : the content is written to a temp file only readable by its owner
+     * (rw------- where supported), then moved in place.
+     *
+     * @param file    the file to write, its directory is created if needed
+     * @param content the new content
+     * @throws IOException if the file cannot be written
+     */
+    static void writePrivate(File file, byte[] content) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("cannot create " + dir);
+        Path temp = new File(dir, file.getName() + ".tmp").toPath();
+        Files.deleteIfExists(temp);
+        if (temp.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(temp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            File created = Files.createFile(temp).toFile();
+            if (!created.setReadable(false, false) || !created.setReadable(true, true)
+                    || !created.setWritable(false, false) || !created.setWritable(true, true))
+                Logger.log(Level.FINE, "Cannot restrict access to {0}", created);
+        }
+        Files.write(temp, content);
+        Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
 }
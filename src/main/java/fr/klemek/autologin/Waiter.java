@@ -0,0 +1,139 @@
+package fr.klemek.autologin;
+
+import fr.klemek.logger.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+
+import org.openqa.selenium.By;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebElement;
+
+/**
+ * Wait for configured readiness conditions instead of sleeping a fixed time : all of them, or the first one met.
+ * Available conditions :
+ * <ul>
+ * <li>ready_state : document.readyState is complete</li>
+ * <li>fields : the login fields are displayed and enabled</li>
+ * <li>button : the login button is displayed and enabled</li>
+ * <li>url_changed : the url changed since the wait was created</li>
+ * <li>title_changed : the title changed since the wait was created</li>
+ * <li>page_changed : the url or the title changed since the wait was created</li>
+ * <li>connected : the connection test passes</li>
+ * </ul>
+ *
+ * @author Clement Gouin
+ */
+final class Waiter {
+
+    private final WebDriver driver;
+    private final Map<String, String> params;
+    private final BooleanSupplier connectionTest;
+    private final List<String> conditions = new ArrayList<>();
+    private final boolean any;
+    private final String startUrl;
+    private final String startTitle;
+
+    /**
+     * Create a wait, the current url and title are kept to detect changes.
+     *
+     * @param driver         the driver to watch
+     * @param params         the login parameters (see App.loadParams)
+     * @param conditions     the conditions separated by commas
+     * @param any            true if one condition met is enough, false if all of them must be met
+     * @param connectionTest the connection test used by the 'connected' condition, without side effect
+     */
+    Waiter(WebDriver driver, Map<String, String> params, String conditions, boolean any,
+           BooleanSupplier connectionTest) {
+        this.driver = driver;
+        this.params = params;
+        this.any = any;
+        this.connectionTest = connectionTest;
+        if (conditions != null)
+            for (String condition : conditions.split(","))
+                if (condition.trim().length() > 0)
+                    this.conditions.add(condition.trim());
+        this.startUrl = driver.getCurrentUrl();
+        this.startTitle = driver.getTitle();
+    }
+
+    /**
+     * Poll the conditions until they are met (all of them or one of them) or the timeout expires.
+     *
+     * @param timeout the maximum time to wait in ms
+     * @param poll    the time between two checks in ms
+     * @return true if the conditions were met in time
+     */
+    boolean await(long timeout, long poll) {
+        if (conditions.isEmpty())
+            return true;
+        long start = System.currentTimeMillis();
+        Logger.log("Waiting for " + (any ? "any of " : "") + conditions + " ...");
+        while (true) {
+            String pending = null;
+            String met = null;
+            for (String condition : conditions)
+                if (check(condition)) {
+                    met = condition;
+                    if (any)
+                        break;
+                } else {
+                    pending = condition;
+                    if (!any)
+                        break;
+                }
+            long elapsed = System.currentTimeMillis() - start;
+            if (any ? met != null : pending == null) {
+                Logger.log("Conditions met after " + elapsed + " ms" + (any ? " (" + met + ")" : ""));
+                return true;
+            }
+            if (elapsed >= timeout) {
+                Logger.log(Level.WARNING, "Timed out after " + elapsed + " ms waiting for '"
+                        + (any ? String.join("' or '", conditions) : pending) + "'");
+                return false;
+            }
+            try {
+                Thread.sleep(Math.min(poll, timeout - elapsed));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    private boolean check(String condition) {
+        try {
+            switch (condition) {
+                case "ready_state":
+                    return "complete".equals(((JavascriptExecutor) driver).executeScript("return document.readyState"));
+                case "fields":
+                    return isReady(params.get("username_field_id")) && isReady(params.get("pass_field_id"));
+                case "button":
+                    return isReady(params.get("button_id"));
+                case "url_changed":
+                    return !driver.getCurrentUrl().equals(startUrl);
+                case "title_changed":
+                    return !driver.getTitle().equals(startTitle);
+                case "page_changed":
+                    return !driver.getCurrentUrl().equals(startUrl) || !driver.getTitle().equals(startTitle);
+                case "connected":
+                    return connectionTest.getAsBoolean();
+                default:
+                    Logger.log(Level.WARNING, "Unknown wait condition '" + condition + "'");
+                    return true;
+            }
+        } catch (RuntimeException e) {
+            Logger.log(Level.FINE, "Condition {0} failed : {1}", condition, e.toString());
+            return false;
+        }
+    }
+
+    private boolean isReady(String id) {
+        List<WebElement> elements = driver.findElements(By.id(id));
+        return !elements.isEmpty() && elements.get(0).isDisplayed() && elements.get(0).isEnabled();
+    }
+}
@@ -0,0 +1,122 @@
+package fr.klemek.autologin;
+
+import fr.klemek.logger.Logger;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+
+/**
+ * Keep the process resident and run the connection check periodically.
+ * While connected the delay between checks doubles up to a maximum, it goes back to the base interval
+ * when a check fails or when a check is triggered (see NetworkWatcher).
+ *
+ * @author Clement Gouin
+ */
+final class Watchdog {
+
+    private static ScheduledExecutorService scheduler;
+    private static ScheduledFuture<?> next;
+    private static BooleanSupplier check;
+    private static long interval;
+    private static long maxInterval;
+    private static long delay;
+    private static int generation;
+
+    private Watchdog() {
+    }
+
+    /**
+     * Schedule the check, the next one starts interval ms after the end of the previous one.
+     *
+     * @param check    the check to run (returns true if connected)
+     * @param interval the delay between two checks in ms
+     */
+    static void start(BooleanSupplier check, long interval) {
+        start(check, interval, interval);
+    }
+
+    /**
+     * Schedule the check, the next one starts between interval and maxInterval ms after the end of the previous one.
+     *
+     * @param check       the check to run (returns true if connected)
+     * @param interval    the delay between two checks in ms, used when not connected
+     * @param maxInterval the maximum delay between two checks in ms while connected
+     */
+    static synchronized void start(BooleanSupplier check, long interval, long maxInterval) {
+        if (scheduler != null)
+            return;
+        if (maxInterval > interval)
+            Logger.log("Starting watchdog, checking every " + interval + " to " + maxInterval + " ms");
+        else
+            Logger.log("Starting watchdog, checking every " + interval + " ms");
+        Watchdog.check = check;
+        Watchdog.interval = interval;
+        Watchdog.maxInterval = Math.max(interval, maxInterval);
+        Watchdog.delay = interval;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "watchdog");
+            t.setDaemon(false);
+            return t;
+        });
+        schedule(0);
+        Runtime.getRuntime().addShutdownHook(new Thread(Watchdog::stop));
+    }
+
+    /**
+     * Run the check as soon as possible and go back to the base interval.
+     */
+    static synchronized void trigger() {
+        if (scheduler == null)
+            return;
+        delay = interval;
+        if (next != null)
+            next.cancel(false);
+        schedule(0);
+    }
+
+    /**
+     * Schedule the next check, superseding any check scheduled before.
+     * The scheduler has a single thread so a check in progress ends before the new one starts.
+     */
+    private static void schedule(long ms) {
+        int current = ++generation;
+        next = scheduler.schedule(() -> run(current), ms, TimeUnit.MILLISECONDS);
+    }
+
+    private static void run(int current) {
+        boolean connected = false;
+        try {
+            connected = check.getAsBoolean();
+        } catch (Exception e) {
+            Logger.log(e);
+        }
+        synchronized (Watchdog.class) {
+            if (scheduler == null || current != generation)
+                return;
+            if (connected) {
+                long wait = delay;
+                delay = Math.min(delay * 2, maxInterval);
+                schedule(wait);
+            } else {
+                delay = interval;
+                Logger.log(Level.WARNING, "Still not connected, next try in " + interval + " ms");
+                schedule(interval);
+            }
+        }
+    }
+
+    /**
+     * Stop the scheduled checks.
+     */
+    static synchronized void stop() {
+        if (scheduler == null)
+            return;
+        scheduler.shutdownNow();
+        scheduler = null;
+        next = null;
+    }
+}
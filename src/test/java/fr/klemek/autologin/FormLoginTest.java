@@ -0,0 +1,85 @@
+package fr.klemek.autologin;
+
+import java.net.MalformedURLException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FormLoginTest {
+
+    private static final String PAGE = "<html><head><title>Portal</title></head><body>"
+            + "<form action=\"/search\" method=\"get\"><input type=\"text\" id=\"q\" name=\"q\"></form>"
+            + "<FORM Action='login.php?lang=en' METHOD=post>"
+            + "<input type=\"hidden\" name=\"token\" value=\"a1b2c3d4\">"
+            + "<input type=hidden name=redirect value=\"https://portal/?a=1&amp;b=&quot;2&quot;\">"
+            + "<input type=\"text\" id=\"user\" name=\"username\">"
+            + "<input type=\"password\" id=\"pass\" name=\"password\" value=\"\">"
+            + "<input type=\"checkbox\" name=\"remember\" value=\"yes\">"
+            + "<input type=\"checkbox\" name=\"terms\" value=\"ok\" checked>"
+            + "<input type=\"text\" name=\"\" value=\"ignored\">"
+            + "<button type=\"submit\" id=\"submit\" name=\"login\" value=\"Log In\">Log In</button>"
+            + "</FORM></body></html>";
+
+    @Test
+    public void findFormHoldingField() {
+        FormLogin.Form form = FormLogin.findForm(PAGE, "pass");
+        assertNotNull(form);
+        assertEquals("login.php?lang=en", form.action);
+        assertEquals("post", form.method);
+        assertEquals("username", form.names.get("user"));
+        assertEquals("password", form.names.get("pass"));
+        assertNull(FormLogin.findForm(PAGE, "missing"));
+        assertEquals("/search", FormLogin.findForm(PAGE, "q").action);
+    }
+
+    @Test
+    public void hiddenFieldsAreKept() {
+        FormLogin.Form form = FormLogin.findForm(PAGE, "pass");
+        assertArrayEquals(new String[]{"a1b2c3d4"}, form.fields.get("token"));
+        assertArrayEquals(new String[]{"https://portal/?a=1&b=\"2\""}, form.fields.get("redirect"));
+        assertArrayEquals(new String[]{""}, form.fields.get("password"));
+    }
+
+    @Test
+    public void uncheckedAndButtonFieldsAreSkipped() {
+        FormLogin.Form form = FormLogin.findForm(PAGE, "pass");
+        assertFalse(form.fields.containsKey("remember"));
+        assertArrayEquals(new String[]{"ok"}, form.fields.get("terms"));
+        assertFalse(form.fields.containsKey("login"));
+        assertFalse(form.fields.containsKey(""));
+        assertTrue(form.buttons.contains("submit"));
+        assertEquals("Log In", form.buttonValues.get("submit"));
+    }
+
+    @Test
+    public void findValueInAnyForm() {
+        assertEquals("a1b2c3d4", FormLogin.findValue(PAGE, "token"));
+        assertNull(FormLogin.findValue(PAGE, "missing"));
+    }
+
+    @Test
+    public void resolveRelativeAction() throws MalformedURLException {
+        FormLogin.Form form = FormLogin.findForm(PAGE, "pass");
+        assertEquals("http://portal.local/auth/login.php?lang=en",
+                FormLogin.resolveAction(form, "http://portal.local/auth/index.html"));
+        assertEquals("http://portal.local/search",
+                FormLogin.resolveAction(FormLogin.findForm(PAGE, "q"), "http://portal.local/auth/index.html"));
+    }
+
+    @Test
+    public void resolveMissingOrAbsoluteAction() throws MalformedURLException {
+        String page = "<form><input id=\"pass\" name=\"p\"></form>"
+                + "<form action=\"\"><input id=\"empty\" name=\"p\"></form>"
+                + "<form action=\"https://auth.local/login\"><input id=\"abs\" name=\"p\"></form>";
+        String base = "http://portal.local/index.html?x=1";
+        assertEquals(base, FormLogin.resolveAction(FormLogin.findForm(page, "pass"), base));
+        assertEquals(base, FormLogin.resolveAction(FormLogin.findForm(page, "empty"), base));
+        assertEquals("https://auth.local/login", FormLogin.resolveAction(FormLogin.findForm(page, "abs"), base));
+    }
+}
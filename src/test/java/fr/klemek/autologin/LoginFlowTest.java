@@ -0,0 +1,84 @@
+package fr.klemek.autologin;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class LoginFlowTest {
+
+    private Map<String, String> values;
+    private Map<String, LoginFlow.Variable> variables;
+
+    @Before
+    public void setUp() {
+        values = new LinkedHashMap<>();
+        values.put("john.doe", "login");
+        values.put("s3cr3t!pass", "pass");
+        variables = new LinkedHashMap<>();
+    }
+
+    @Test
+    public void tokenByFieldName() {
+        String page = "<form action=\"/login\"><input type=\"hidden\" name=\"csrf\" value=\"f00dcafe42\">"
+                + "<input id=\"pass\" name=\"password\"></form>";
+        assertEquals("token1", LoginFlow.variable("f00dcafe42", "csrf", values, variables, page));
+        LoginFlow.Variable variable = variables.get("token1");
+        assertEquals("csrf", variable.field);
+        assertEquals("d34db33f77", variable.extract(page.replace("f00dcafe42", "d34db33f77")));
+    }
+
+    @Test
+    public void tokenBySurroundingText() {
+        String page = "<html><script>var session = \"S3ss10nKey\";</script><form></form></html>";
+        assertEquals("token1", LoginFlow.variable("S3ss10nKey", null, values, variables, page));
+        LoginFlow.Variable variable = variables.get("token1");
+        assertNull(variable.field);
+        assertEquals("0therKey42", variable.extract(page.replace("S3ss10nKey", "0therKey42")));
+        assertNull(variable.extract("<html><script>var other = 1;</script></html>"));
+    }
+
+    @Test
+    public void tokenAtStartOfPage() {
+        String page = "S3ss10nKey;expires=600";
+        assertEquals("token1", LoginFlow.variable("S3ss10nKey", null, values, variables, page));
+        assertEquals("0therKey42", variables.get("token1").extract(page.replace("S3ss10nKey", "0therKey42")));
+    }
+
+    @Test
+    public void credentialsAndConstants() {
+        String page = "<form><input type=\"hidden\" name=\"csrf\" value=\"f00dcafe42\"></form>";
+        assertEquals("login", LoginFlow.variable("john.doe", "user", values, variables, page));
+        assertEquals("pass", LoginFlow.variable("s3cr3t!pass", null, values, variables, page));
+        assertNull("short values are constants", LoginFlow.variable("en", "lang", values, variables, page));
+        assertNull("values not in the page are constants",
+                LoginFlow.variable("not-in-page", "other", values, variables, page));
+        assertEquals("token1", LoginFlow.variable("f00dcafe42", "csrf", values, variables, page));
+        assertEquals("token1", LoginFlow.variable("f00dcafe42", "csrf", values, variables, page));
+        assertEquals(1, variables.size());
+    }
+
+    @Test
+    public void jsonBodyTemplatesExactValuesOnly() {
+        String page = "<form><input type=\"hidden\" name=\"csrf\" value=\"f00dcafe42\"></form>";
+        String body = "{\"user\":\"john.doe\",\"password\":\"s3cr3t!pass\",\"note\":\"hello john.doe\","
+                + "\"john.doe\":1,\"csrf\":\"f00dcafe42\",\"remember\":true}";
+        JSONObject json = new JSONObject(LoginFlow.templateJson(body, values, variables, page));
+        assertEquals("{{login}}", json.getString("user"));
+        assertEquals("{{pass}}", json.getString("password"));
+        assertEquals("hello john.doe", json.getString("note"));
+        assertEquals(1, json.getInt("john.doe"));
+        assertEquals("{{token1}}", json.getString("csrf"));
+        assertEquals(true, json.optBoolean("remember", false));
+    }
+
+    @Test
+    public void unparsableBodyIsKept() {
+        assertEquals("john.doe;s3cr3t!pass", LoginFlow.templateJson("john.doe;s3cr3t!pass", values, variables, ""));
+    }
+}